@@ -7,5 +7,15 @@ public record Config(
         List<GithubWebhookConfig> githubWebhooks,
         String githubToken,
         String discordWebhookUrl,
-        String rootRedirectUrl
+        String rootRedirectUrl,
+
+        // Bytes of artifacts to keep in memory across all channels, for downloads that can't use sendfile (64MiB by default)
+        Long artifactCacheSize,
+
+        // Where download stats are kept: h2 (default) or columnar, read at startup.
+        // Switching to columnar imports the H2 downloads once, but not the unique downloader estimates
+        String statsStore,
+
+        // Re-hash stored artifacts in the background after channels load, instead of only trusting the recorded digests
+        Boolean verifyArtifacts
 ) {}
@@ -9,7 +9,6 @@ public record VersionChannelConfig(
         String repoName,
         Type type,
         int versionsToKeep,
-        int versionsToKeepInMemory,
         List<VersionArtifactConfig> artifacts,
         List<SecurityConfig> security,
 
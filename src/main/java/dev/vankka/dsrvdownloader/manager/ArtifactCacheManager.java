@@ -0,0 +1,103 @@
+package dev.vankka.dsrvdownloader.manager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+import dev.vankka.dsrvdownloader.Downloader;
+import dev.vankka.dsrvdownloader.model.Artifact;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Keeps the artifacts that are downloaded the most mapped in memory, across all channels, within a byte budget.
+ * Caffeine's W-TinyLFU policy decides what stays based on how often each artifact is requested,
+ * regardless of how new the version is.
+ * <p>
+ * Downloads go through sendfile when the connector supports it, so this only serves multipart range requests
+ * and connectors without sendfile, and is kept small. Evicted mappings are only released once their buffers
+ * are garbage collected (they can't be unmapped while a transfer may still be reading them),
+ * so the mapped memory can briefly go over the budget.
+ */
+@Service
+public class ArtifactCacheManager {
+
+    private static final long DEFAULT_SIZE = 64L * 1024 * 1024;
+
+    private final ConfigManager configManager;
+    private final Cache<Artifact, MappedByteBuffer> cache;
+
+    public ArtifactCacheManager(ConfigManager configManager) {
+        this.configManager = configManager;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumSize())
+                .weigher((Artifact artifact, MappedByteBuffer content) -> content.capacity())
+                .recordStats()
+                .build();
+    }
+
+    private long maximumSize() {
+        Long size = configManager.config().artifactCacheSize();
+        return size != null ? Math.max(size, 0) : DEFAULT_SIZE;
+    }
+
+    /**
+     * A read-only view of the artifact's content with its own position, mapping it if it isn't yet.
+     * Concurrent requests for the same artifact wait for a single mapping.
+     * Only for transfers that can't use sendfile, which doesn't need the content in memory.
+     *
+     * @return the content or {@code null} if the artifact doesn't fit in the cache, in which case it should be read from disk
+     */
+    @Nullable
+    public ByteBuffer getContent(Artifact artifact) {
+        long maximumSize = maximumSize();
+        cache.policy().eviction().ifPresent(eviction -> {
+            if (eviction.getMaximum() != maximumSize) {
+                // Config was replaced
+                eviction.setMaximum(maximumSize);
+            }
+        });
+
+        if (artifact.getSize() > Math.min(maximumSize, Integer.MAX_VALUE)) {
+            return null;
+        }
+
+        MappedByteBuffer content;
+        try {
+            content = cache.get(artifact, key -> {
+                try {
+                    return Artifact.map(key.getFile());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            Downloader.LOGGER.error("Failed to map " + artifact.getFile() + " into memory", e);
+            return null;
+        }
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops the artifact from memory, the mapping is released once the buffer is garbage collected.
+     */
+    public void invalidate(Artifact artifact) {
+        cache.invalidate(artifact);
+    }
+
+    public long size() {
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    public long maximum() {
+        return cache.policy().eviction().map(Policy.Eviction::getMaximum).orElse(0L);
+    }
+
+    public double hitRate() {
+        return cache.stats().hitRate();
+    }
+}
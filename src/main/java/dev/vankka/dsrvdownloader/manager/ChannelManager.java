@@ -1,96 +1,363 @@
 package dev.vankka.dsrvdownloader.manager;
 
+import dev.vankka.dsrvdownloader.Downloader;
 import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
 import dev.vankka.dsrvdownloader.discord.DiscordWebhook;
+import dev.vankka.dsrvdownloader.model.Artifact;
+import dev.vankka.dsrvdownloader.model.ChannelReadiness;
+import dev.vankka.dsrvdownloader.model.Version;
 import dev.vankka.dsrvdownloader.model.channel.ReleaseChannel;
 import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
 import dev.vankka.dsrvdownloader.model.channel.WorkflowChannel;
+import dev.vankka.dsrvdownloader.model.exception.ChannelLoadingException;
+import dev.vankka.dsrvdownloader.util.IO;
+import org.apache.tomcat.util.buf.HexUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class ChannelManager {
 
-    private final List<VersionChannel> versionChannels = new ArrayList<>();
-    private final AtomicBoolean refreshVersionChannels = new AtomicBoolean(false);
+    // Channels are mostly waiting on GitHub and disk while loading
+    private static final int BOOTSTRAP_THREADS = 4;
+    private static final Duration BOOTSTRAP_TIMEOUT = Duration.ofMinutes(5);
+    private static final long LOADING_RETRY_AFTER_SECONDS = 10;
+    // Catches what webhooks missed, every so many syncs is a full one that also notices removals
+    private static final Duration SYNC_INTERVAL = Duration.ofHours(1);
+    private static final int FULL_SYNC_EVERY = 24;
+
+    private volatile Registry registry = Registry.of(Collections.emptyList());
+    private final Map<String, ChannelReadiness> readiness = new ConcurrentHashMap<>();
     private final ConfigManager configManager;
     private final DiscordWebhook discordWebhook;
+    private final ArtifactCacheManager artifactCacheManager;
     private final ScheduledExecutorService executorService;
+    // Catching up channels with GitHub, after starting from their snapshot and periodically
+    private final ExecutorService syncExecutor;
+    private final ForkJoinPool verifyPool;
+    private int syncs;
 
     @Autowired
-    public ChannelManager(ConfigManager configManager, DiscordWebhook discordWebhook) {
+    public ChannelManager(ConfigManager configManager, DiscordWebhook discordWebhook, ArtifactCacheManager artifactCacheManager) {
         this.configManager = configManager;
         this.discordWebhook = discordWebhook;
+        this.artifactCacheManager = artifactCacheManager;
         this.executorService = Executors.newSingleThreadScheduledExecutor();
-        reloadVersionChannels();
+        this.syncExecutor = Executors.newFixedThreadPool(BOOTSTRAP_THREADS);
+        this.verifyPool = new ForkJoinPool(BOOTSTRAP_THREADS);
+
+        // Serve channels as they finish loading instead of waiting for all of them
+        markLoading(configManager.config().versionChannels());
+        executorService.execute(this::reloadVersionChannels);
         executorService.scheduleAtFixedRate(() -> {
-            for (VersionChannel versionChannel : versionChannels) {
+            for (VersionChannel versionChannel : registry.channels()) {
                 versionChannel.removeExpiredVersions();
             }
         }, 1, 1, TimeUnit.MINUTES);
+        executorService.scheduleAtFixedRate(this::syncChannels, SYNC_INTERVAL.toMinutes(), SYNC_INTERVAL.toMinutes(), TimeUnit.MINUTES);
     }
 
-    public void reloadVersionChannels() {
-        List<VersionChannel> newChannels = new ArrayList<>();
-        for (VersionChannelConfig channelConfig : configManager.config().versionChannels()) {
-            VersionChannel channel;
-            switch (channelConfig.type()) {
-                case RELEASE -> channel = new ReleaseChannel(configManager, discordWebhook, channelConfig);
-                case WORKFLOW -> channel = new WorkflowChannel(configManager, discordWebhook, channelConfig);
-                default -> {
-                    continue;
+    private void syncChannels() {
+        boolean full = ++syncs % FULL_SYNC_EVERY == 0;
+        for (VersionChannel channel : registry.channels()) {
+            syncExecutor.execute(() -> {
+                try {
+                    channel.sync(full);
+                } catch (Throwable t) {
+                    Downloader.LOGGER.error("Failed to sync channel " + describe(channel.getConfig()) + " with GitHub", t);
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates all channels from the config, several at a time. Channels that fail or take too long to load
+     * keep being served by their previous instance if there is one, otherwise they're left out.
+     * Channels that are new to this reload are served as soon as they're loaded, the others keep using the old channel until the end.
+     *
+     * @return the channels that failed or took too long to load, in config order
+     */
+    public synchronized List<ReloadFailure> reloadVersionChannels() {
+        List<VersionChannelConfig> configs = configManager.config().versionChannels();
+        markLoading(configs);
+        Registry previous = registry;
+        VersionChannel[] loaded = new VersionChannel[configs.size()];
+        String[] failures = new String[configs.size()];
+        long start = System.nanoTime();
+
+        int threads = Math.max(1, Math.min(configs.size(), BOOTSTRAP_THREADS));
+        // Enough for every channel to take its full time, one batch after another. Also covers channels that never get to start
+        // because threads are stuck in a load that can't be interrupted
+        long reloadTimeout = BOOTSTRAP_TIMEOUT.toNanos() * Math.max(1, (configs.size() + threads - 1) / threads);
+        ExecutorService bootstrapExecutor = Executors.newFixedThreadPool(threads);
+        CompletionService<VersionChannel> completionService = new ExecutorCompletionService<>(bootstrapExecutor);
+        Map<Future<VersionChannel>, Bootstrap> running = new HashMap<>();
+        try {
+            for (int i = 0; i < configs.size(); i++) {
+                Bootstrap bootstrap = new Bootstrap(i, configs.get(i), new AtomicLong());
+                running.put(completionService.submit(() -> createChannel(bootstrap)), bootstrap);
+            }
+
+            int done = 0;
+            while (!running.isEmpty()) {
+                Future<VersionChannel> future = completionService.poll(1, TimeUnit.SECONDS);
+                if (future != null) {
+                    Bootstrap bootstrap = running.remove(future);
+                    done++;
+                    try {
+                        VersionChannel channel = future.get();
+                        loaded[bootstrap.index()] = channel;
+                        setReadiness(bootstrap.config(), ChannelReadiness.State.READY);
+                        if (!registry.byKey().containsKey(key(bootstrap.config()))) {
+                            registry = registry.with(channel);
+                        }
+                        syncExecutor.execute(() -> reconcile(channel, bootstrap.config()));
+                        Downloader.LOGGER.info("Loaded channel " + describe(bootstrap.config()) + " (" + done + "/" + configs.size()
+                                + ") in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bootstrap.started().get()) + "ms");
+                    } catch (CancellationException ignored) {
+                        // Timed out, already logged
+                        failures[bootstrap.index()] = "took longer than " + BOOTSTRAP_TIMEOUT.toSeconds() + " seconds";
+                        setReadiness(bootstrap.config(), ChannelReadiness.State.FAILED);
+                    } catch (ExecutionException e) {
+                        failures[bootstrap.index()] = String.valueOf(e.getCause());
+                        setReadiness(bootstrap.config(), ChannelReadiness.State.FAILED);
+                        Downloader.LOGGER.error("Failed to load channel " + describe(bootstrap.config())
+                                + " (" + done + "/" + configs.size() + ")", e.getCause());
+                    }
+                }
+
+                // Timed from when the channel starts loading, not from when it was queued
+                long now = System.nanoTime();
+                for (Map.Entry<Future<VersionChannel>, Bootstrap> entry : running.entrySet()) {
+                    long started = entry.getValue().started().get();
+                    if (started != 0 && now - started > BOOTSTRAP_TIMEOUT.toNanos() && entry.getKey().cancel(true)) {
+                        Downloader.LOGGER.error("Loading channel " + describe(entry.getValue().config())
+                                + " took longer than " + BOOTSTRAP_TIMEOUT.toSeconds() + " seconds, skipping it");
+                    }
+                }
+
+                if (now - start > reloadTimeout) {
+                    long seconds = TimeUnit.NANOSECONDS.toSeconds(reloadTimeout);
+                    running.forEach((stuck, bootstrap) -> {
+                        stuck.cancel(true);
+                        failures[bootstrap.index()] = "not loaded within " + seconds + " seconds of the reload starting";
+                        setReadiness(bootstrap.config(), ChannelReadiness.State.FAILED);
+                        Downloader.LOGGER.error("Channel " + describe(bootstrap.config()) + " wasn't loaded within "
+                                + seconds + " seconds of the reload starting, skipping it");
+                    });
+                    running.clear();
                 }
             }
-            newChannels.add(channel);
+        } catch (InterruptedException e) {
+            running.forEach((future, bootstrap) -> {
+                future.cancel(true);
+                failures[bootstrap.index()] = "interrupted";
+                setReadiness(bootstrap.config(), ChannelReadiness.State.FAILED);
+            });
+            Thread.currentThread().interrupt();
+        } finally {
+            bootstrapExecutor.shutdownNow();
+        }
+
+        List<VersionChannel> newChannels = new ArrayList<>();
+        List<ReloadFailure> failed = new ArrayList<>();
+        for (int i = 0; i < configs.size(); i++) {
+            VersionChannel channel = loaded[i];
+            if (channel != null) {
+                newChannels.add(channel);
+                continue;
+            }
+
+            // The previous instance was serving fine, don't drop the channel because reloading it didn't work out
+            VersionChannelConfig config = configs.get(i);
+            VersionChannel previousChannel = previous.byKey().get(key(config));
+            if (previousChannel != null) {
+                newChannels.add(previousChannel);
+                setReadiness(config, ChannelReadiness.State.READY);
+            }
+            failed.add(new ReloadFailure(describe(config), Objects.requireNonNullElse(failures[i], "not loaded"), previousChannel != null));
         }
+        Downloader.LOGGER.info("Loaded " + (configs.size() - failed.size()) + "/" + configs.size() + " channels in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
 
-        refreshVersionChannels.set(true);
-        versionChannels.clear();
-        versionChannels.addAll(newChannels);
+        // Lookups keep using the old channels until the new ones are ready
+        registry = Registry.of(newChannels);
 
-        refreshVersionChannels.set(false);
-        synchronized (refreshVersionChannels) {
-            refreshVersionChannels.notifyAll();
+        Set<String> keys = new HashSet<>();
+        for (VersionChannelConfig config : configs) {
+            keys.add(key(config));
         }
+        readiness.keySet().retainAll(keys);
+        return failed;
     }
 
-    public Optional<VersionChannel> getChannel(String repoOwner, String repoName, String name) {
-        if (refreshVersionChannels.get()) {
-            synchronized (refreshVersionChannels) {
-                try {
-                    refreshVersionChannels.wait();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
+    /**
+     * Marks channels that aren't currently being served as loading, so requests for them get a 503 instead of a 400.
+     */
+    private void markLoading(List<VersionChannelConfig> configs) {
+        Registry current = registry;
+        for (VersionChannelConfig config : configs) {
+            if (!current.byKey().containsKey(key(config))) {
+                setReadiness(config, ChannelReadiness.State.LOADING);
             }
         }
+    }
+
+    private void setReadiness(VersionChannelConfig config, ChannelReadiness.State state) {
+        readiness.put(key(config), new ChannelReadiness(
+                config.repoOwner(), config.repoName(), config.name(), state, System.currentTimeMillis()));
+    }
 
-        for (VersionChannel versionChannel : versionChannels) {
-            VersionChannelConfig config = versionChannel.getConfig();
-            if (config.repoOwner().equalsIgnoreCase(repoOwner)
-                    && config.repoName().equalsIgnoreCase(repoName)
-                    && config.name().equalsIgnoreCase(name)) {
-                return Optional.of(versionChannel);
+    /**
+     * @return the state of each configured channel, in config order
+     */
+    public List<ChannelReadiness> readiness() {
+        List<ChannelReadiness> states = new ArrayList<>();
+        for (VersionChannelConfig config : configManager.config().versionChannels()) {
+            ChannelReadiness channelReadiness = readiness.get(key(config));
+            if (channelReadiness != null && !states.contains(channelReadiness)) {
+                states.add(channelReadiness);
             }
         }
-        return Optional.empty();
+        return states;
+    }
+
+    private void reconcile(VersionChannel channel, VersionChannelConfig config) {
+        try {
+            channel.reconcile();
+        } catch (Throwable t) {
+            Downloader.LOGGER.error("Failed to reconcile channel " + describe(config) + " with GitHub", t);
+        }
+
+        if (Boolean.TRUE.equals(configManager.config().verifyArtifacts())) {
+            List<Artifact> artifacts = new ArrayList<>();
+            for (Version version : channel.versionsByIdentifier().values()) {
+                artifacts.addAll(version.getArtifactsByIdentifier().values());
+            }
+            verifyPool.execute(() -> artifacts.parallelStream().forEach(artifact -> verify(artifact, config)));
+        }
+    }
+
+    /**
+     * Checks that the file still has the digest that was recorded for it, loading trusts it while the size and modification time match.
+     */
+    private void verify(Artifact artifact, VersionChannelConfig config) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (IO io = new IO(Files.newInputStream(artifact.getFile())).withDigest(digest)) {
+                io.stream();
+            }
+
+            String sha256 = HexUtils.toHexString(digest.digest());
+            if (!sha256.equals(artifact.getSha256())) {
+                Downloader.LOGGER.error("Artifact " + artifact.getFile() + " of " + describe(config) + " has changed, expected sha256 "
+                                                + artifact.getSha256() + " but it is " + sha256);
+            }
+        } catch (NoSuchFileException ignored) {
+            // Removed since
+        } catch (IOException | DigestException | NoSuchAlgorithmException e) {
+            Downloader.LOGGER.error("Failed to verify artifact " + artifact.getFile() + " of " + describe(config), e);
+        }
+    }
+
+    private VersionChannel createChannel(Bootstrap bootstrap) {
+        bootstrap.started().set(System.nanoTime());
+        VersionChannelConfig channelConfig = bootstrap.config();
+        return switch (channelConfig.type()) {
+            case RELEASE -> new ReleaseChannel(configManager, discordWebhook, artifactCacheManager, channelConfig);
+            case WORKFLOW -> new WorkflowChannel(configManager, discordWebhook, artifactCacheManager, channelConfig);
+        };
+    }
+
+    private static String describe(VersionChannelConfig config) {
+        return config.repoOwner() + "/" + config.repoName() + ":" + config.name();
+    }
+
+    /**
+     * @throws ChannelLoadingException if the channel is configured but hasn't finished loading yet
+     */
+    public Optional<VersionChannel> getChannel(String repoOwner, String repoName, String name) {
+        String key = key(repoOwner, repoName, name);
+        VersionChannel channel = registry.byKey().get(key);
+        if (channel == null) {
+            ChannelReadiness channelReadiness = readiness.get(key);
+            if (channelReadiness != null && channelReadiness.state() == ChannelReadiness.State.LOADING) {
+                throw new ChannelLoadingException(LOADING_RETRY_AFTER_SECONDS);
+            }
+        }
+        return Optional.ofNullable(channel);
+    }
+
+    public List<VersionChannel> getChannelsForRepo(String repoOwner, String repoName) {
+        return registry.byRepo().getOrDefault(key(repoOwner, repoName), Collections.emptyList());
     }
 
     public List<VersionChannel> versionChannels() {
-        return versionChannels;
+        return registry.channels();
+    }
+
+    private static String key(VersionChannelConfig config) {
+        return key(config.repoOwner(), config.repoName(), config.name());
+    }
+
+    private static String key(String... parts) {
+        return String.join("/", parts).toLowerCase(Locale.ROOT);
     }
 
     @PreDestroy
     private void shutdown() {
         executorService.shutdown();
+        syncExecutor.shutdownNow();
+        verifyPool.shutdownNow();
+    }
+
+    /**
+     * @param channel the channel as {@code owner/repo:name}
+     * @param reason why it wasn't loaded
+     * @param keptPrevious if the channel's previous instance is still being served
+     */
+    public record ReloadFailure(String channel, String reason, boolean keptPrevious) {}
+
+    /**
+     * @param index the position of the channel in the config
+     * @param started when the channel started loading ({@link System#nanoTime()}), {@code 0} while queued
+     */
+    private record Bootstrap(int index, VersionChannelConfig config, AtomicLong started) {}
+
+    private record Registry(
+            List<VersionChannel> channels,
+            Map<String, VersionChannel> byKey,
+            Map<String, List<VersionChannel>> byRepo
+    ) {
+        private static Registry of(List<VersionChannel> channels) {
+            Map<String, VersionChannel> byKey = new HashMap<>();
+            Map<String, List<VersionChannel>> byRepo = new HashMap<>();
+            for (VersionChannel channel : channels) {
+                VersionChannelConfig config = channel.getConfig();
+                byKey.putIfAbsent(key(config), channel);
+                byRepo.computeIfAbsent(key(config.repoOwner(), config.repoName()), k -> new ArrayList<>()).add(channel);
+            }
+            byRepo.replaceAll((key, repoChannels) -> List.copyOf(repoChannels));
+
+            return new Registry(List.copyOf(channels), Map.copyOf(byKey), Map.copyOf(byRepo));
+        }
+
+        private Registry with(VersionChannel channel) {
+            List<VersionChannel> channels = new ArrayList<>(this.channels);
+            channels.add(channel);
+            return of(channels);
+        }
     }
 }
@@ -1,73 +1,191 @@
 package dev.vankka.dsrvdownloader.manager;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import dev.vankka.dsrvdownloader.Downloader;
 import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
+import dev.vankka.dsrvdownloader.model.Artifact;
+import dev.vankka.dsrvdownloader.model.DownloadCounter;
 import dev.vankka.dsrvdownloader.model.UserAgent;
+import dev.vankka.dsrvdownloader.model.Version;
 import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
+import dev.vankka.dsrvdownloader.model.stats.*;
+import dev.vankka.dsrvdownloader.util.CounterJournal;
+import dev.vankka.dsrvdownloader.util.HyperLogLog;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
-import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Service;
 
-import java.sql.Date;
-import java.sql.*;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 @Service
 @SuppressWarnings("SpellCheckingInspection")
 public class StatsManager {
 
-    private final ScheduledExecutorService executorService;
-    private final Connection connection;
-    private final Map<Artifact, EnumMap<UserAgent, AtomicInteger>> artifacts = new LinkedHashMap<>();
+    // Older days are only kept by week
+    private static final int DAILY_RETENTION_DAYS = 400;
+    // Counters that don't fit are only kept in memory until flushed
+    private static final int JOURNAL_SLOTS = 16384;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+    private static final String H2_URL = "jdbc:h2:./stats";
+    private static final Path H2_FILE = Path.of("stats.mv.db");
+    private static final List<String> EXPORT_COLUMNS = List.of(
+            "date", "period", "repoowner", "reponame", "channel", "artifact", "version", "useragent", "count");
+    private static final List<String> COUNTER_KEY = List.of("repoowner", "reponame", "channel", "artifact", "version", "useragent");
 
-    public StatsManager() throws SQLException, ClassNotFoundException {
-        Class.forName("org.h2.Driver");
+    private final ScheduledExecutorService executorService;
+    private final StatsStore store;
+    private final CounterJournal journal;
+    // Never removed, there's one per artifact of each version that was downloaded while running
+    private final Map<List<String>, DownloadCounter> counters = new ConcurrentHashMap<>();
+    // All-time downloads by counter key and user agent ordinal, including what's being flushed at the moment
+    private final Map<List<String>, AtomicLongArray> totals = new ConcurrentHashMap<>();
+    private volatile FlushMetrics flushMetrics = new FlushMetrics(0, 0, 0, 0);
+    // The sequence number of the last flush the store has, only used by the flusher
+    private long flushSequence;
+    private boolean journalFull;
+
+    public StatsManager(ConfigManager configManager) throws IOException {
         this.executorService = Executors.newSingleThreadScheduledExecutor();
-        this.connection = DriverManager.getConnection("jdbc:h2:./stats");
-
-        try (Statement statement = connection.createStatement()) {
-            statement.execute("create table if not exists artifact ("
-                                      + "artifactid bigint auto_increment,"
-                                      + "repoowner character(256),"
-                                      + "reponame character(256),"
-                                      + "channel character(256),"
-                                      + "artifact character(256),"
-                                      + "primary key (artifactid)"
-                                      + ");");
-        }
-        try (Statement statement = connection.createStatement()) {
-            statement.execute("create table if not exists stats ("
-                                      + "statsid bigint auto_increment,"
-                                      + "artifactid bigint,"
-                                      + "version character(256),"
-                                      + "useragent tinyint default -1,"
-                                      + "date date,"
-                                      + "count int,"
-                                      + "primary key (statsid),"
-                                      + "foreign key (artifactid) references artifact(artifactid)"
-                                      + ");");
-        }
-        try (Statement statement = connection.createStatement()) {
-            statement.execute("alter table stats add column if not exists useragent tinyint default -1");
-        }
+        this.store = createStore(configManager.config().statsStore());
+        store.totals(row -> totals(listKey(row.key())).addAndGet(row.userAgent().ordinal(), row.count()));
+        this.flushSequence = store.sequence();
 
+        this.journal = new CounterJournal(Path.of("stats.journal"), JOURNAL_SLOTS, UserAgent.values().length);
+        replayJournal();
+
+        executorService.scheduleAtFixedRate(this::checkpoint, CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
         executorService.scheduleAtFixedRate(this::flushStats, 30, 30, TimeUnit.SECONDS);
+        executorService.scheduleAtFixedRate(this::compact, 1, 24 * 60, TimeUnit.MINUTES);
+    }
+
+    private static StatsStore createStore(String type) throws IOException {
+        if (type == null || type.equalsIgnoreCase("h2")) {
+            return new H2StatsStore(H2_URL, DAILY_RETENTION_DAYS);
+        } else if (type.equalsIgnoreCase("columnar")) {
+            ColumnarStatsStore store = new ColumnarStatsStore(Path.of("stats.columnar"), DAILY_RETENTION_DAYS);
+            if (Files.exists(H2_FILE) && store.isEmpty()) {
+                // Switched over from H2, start with its history (only the first time, when there's nothing written yet)
+                Downloader.LOGGER.info("Importing stats from " + H2_FILE + ", unique downloaders are not imported");
+                try (H2StatsStore h2Store = new H2StatsStore(H2_URL, DAILY_RETENTION_DAYS)) {
+                    store.importFrom(h2Store);
+                } catch (IOException e) {
+                    store.close();
+                    throw e;
+                }
+            }
+            return store;
+        }
+        throw new IllegalArgumentException("Unknown stats store: " + type);
+    }
+
+    private static List<String> listKey(StatsKey key) {
+        return List.of(key.repoOwner(), key.repoName(), key.channel(), key.artifact(), key.version());
+    }
+
+    private static StatsKey statsKey(DownloadCounter counter) {
+        return new StatsKey(counter.getRepoOwner(), counter.getRepoName(), counter.getChannel(), counter.getArtifact(), counter.getVersion());
+    }
+
+    /**
+     * Flushes the downloads that were counted before the last shutdown or crash but not written to the database.
+     */
+    private void replayJournal() throws IOException {
+        List<CounterJournal.Entry> entries = journal.entries();
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (journal.sequence() < flushSequence) {
+            // Checkpointed before a flush that was stored, the counts are already in the store
+            Downloader.LOGGER.info("Skipping " + entries.size() + " download counters from the stats journal, they were already stored");
+            return;
+        }
+
+        for (CounterJournal.Entry entry : entries) {
+            List<String> key = entry.key();
+            if (key.size() != 5) {
+                continue;
+            }
+
+            DownloadCounter counter = new DownloadCounter(key.get(0), key.get(1), key.get(2), key.get(3), key.get(4));
+            for (UserAgent userAgent : UserAgent.values()) {
+                counter.add(userAgent, entry.counts()[userAgent.ordinal()]);
+            }
+            counters.put(key, counter);
+        }
+
+        // Stay in the journal until they're stored
+        Downloader.LOGGER.info("Replaying " + entries.size() + " download counters from the stats journal");
+        flushStats();
+    }
+
+    /**
+     * Writes the downloads that haven't been flushed yet to the journal, tagged with the last stored flush.
+     * Only counters with downloads take up space, so the journal only has to fit what's counted between flushes.
+     */
+    private void checkpoint() {
+        List<CounterJournal.Entry> entries = new ArrayList<>();
+        counters.forEach((key, counter) -> {
+            long[] counts = new long[UserAgent.values().length];
+            boolean any = false;
+            for (UserAgent userAgent : UserAgent.values()) {
+                counts[userAgent.ordinal()] = counter.sum(userAgent);
+                any |= counts[userAgent.ordinal()] != 0;
+            }
+            if (any) {
+                entries.add(new CounterJournal.Entry(key, counts));
+            }
+        });
+
+        int left = journal.checkpoint(flushSequence, entries);
+        if (left > 0 && !journalFull) {
+            Downloader.LOGGER.warn("Stats journal is full, " + left + " download counters are only kept in memory until flushed");
+        }
+        journalFull = left > 0;
+    }
+
+    private AtomicLongArray totals(DownloadCounter counter) {
+        return totals(listKey(statsKey(counter)));
     }
 
-    public void increment(VersionChannel versionChannel, String userAgent, String artifactIdentifier, String version) {
-        VersionChannelConfig config = versionChannel.getConfig();
-        Artifact artifact = new Artifact(config.repoOwner(), config.repoName(), config.name(), artifactIdentifier, version);
-        alter(artifact, parseUA(userAgent), AtomicInteger::getAndIncrement);
+    private AtomicLongArray totals(List<String> key) {
+        return totals.computeIfAbsent(key, k -> new AtomicLongArray(UserAgent.values().length));
+    }
+
+    /**
+     * @param requestSource who downloaded, only kept as part of a unique downloader estimate
+     */
+    public void increment(VersionChannel versionChannel, Version version, Artifact artifact, String userAgent, String requestSource) {
+        DownloadCounter counter = artifact.getDownloadCounter();
+        if (counter == null) {
+            // Shared by the artifact instances of reloaded channels
+            VersionChannelConfig config = versionChannel.getConfig();
+            counter = counters.computeIfAbsent(
+                    List.of(config.repoOwner(), config.repoName(), config.name(), artifact.getIdentifier(), version.getIdentifier()),
+                    key -> new DownloadCounter(key.get(0), key.get(1), key.get(2), key.get(3), key.get(4))
+            );
+            artifact.setDownloadCounter(counter);
+        }
+
+        UserAgent parsedUserAgent = parseUA(userAgent);
+        // Journaled by the flusher, not here, so downloads only touch the counter's own cells
+        counter.increment(parsedUserAgent);
+        if (requestSource != null) {
+            counter.offerUnique(LocalDate.now(), HyperLogLog.hash(requestSource));
+        }
     }
 
     private UserAgent parseUA(String userAgent) {
@@ -77,7 +195,7 @@ public class StatsManager {
 
         // https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/User-Agent
 
-        if (userAgent.toLowerCase().contains("bot")) {
+        if (StringUtils.containsIgnoreCase(userAgent, "bot")) {
             return UserAgent.LIKELY_SCRAPER;
         } else if (userAgent.startsWith("Mozilla/")) {
             // https://developer.mozilla.org/en-US/docs/Web/HTTP/Headers/User-Agent/Firefox
@@ -87,117 +205,87 @@ public class StatsManager {
         return UserAgent.LIKELY_AUTOMATED;
     }
 
-    private void alter(Artifact artifact, UserAgent userAgent, Consumer<AtomicInteger> consumer) {
-        synchronized (artifacts) {
-            consumer.accept(
-                    artifacts.computeIfAbsent(artifact, key -> new EnumMap<>(UserAgent.class))
-                            .computeIfAbsent(userAgent, key -> new AtomicInteger(0))
-            );
+    private void flushStats() {
+        long start = System.nanoTime();
+        LocalDate today = LocalDate.now();
+
+        Map<DownloadCounter, EnumMap<UserAgent, Long>> pending = new LinkedHashMap<>();
+        List<StatsRow> rows = new ArrayList<>();
+        for (DownloadCounter counter : counters.values()) {
+            for (UserAgent userAgent : UserAgent.values()) {
+                long amount = counter.sumThenReset(userAgent);
+                if (amount > 0) {
+                    pending.computeIfAbsent(counter, key -> new EnumMap<>(UserAgent.class)).put(userAgent, amount);
+                    rows.add(new StatsRow(statsKey(counter), userAgent, StatsPeriod.DAY, today, amount));
+                    // Moved over right away, so the live view doesn't miss them while the flush is running
+                    totals(counter).addAndGet(userAgent.ordinal(), amount);
+                }
+            }
         }
-    }
 
-    private void flushStats() {
-        Map<Artifact, EnumMap<UserAgent, AtomicInteger>> artifacts;
-        synchronized (this.artifacts) {
-            artifacts = new ConcurrentHashMap<>(this.artifacts);
-            this.artifacts.clear();
+        // Sketches are written whole, so they're left in place and only written when they changed
+        List<Pair<DownloadCounter, Map.Entry<LocalDate, HyperLogLog>>> sketches = new ArrayList<>();
+        List<StatsUniques> uniques = new ArrayList<>();
+        for (DownloadCounter counter : counters.values()) {
+            for (Map.Entry<LocalDate, HyperLogLog> entry : counter.getUniques().entrySet()) {
+                if (entry.getValue().markWritten()) {
+                    sketches.add(Pair.of(counter, entry));
+                    uniques.add(new StatsUniques(statsKey(counter), entry.getKey(), entry.getValue()));
+                } else if (entry.getKey().isBefore(today)) {
+                    // Written by an earlier flush (or loaded) and the day is over, the store has it
+                    counter.getUniques().remove(entry.getKey(), entry.getValue());
+                }
+            }
         }
 
-        Date today = new Date(System.currentTimeMillis());
+        if (rows.isEmpty() && uniques.isEmpty()) {
+            return;
+        }
 
         try {
-            for (Map.Entry<Artifact, EnumMap<UserAgent, AtomicInteger>> artifactEntry : artifacts.entrySet()) {
-                Artifact artifact = artifactEntry.getKey();
-
-                Long artifactId = null;
-                for (int attempt = 0; true; attempt++) {
-                    try (PreparedStatement statement = connection.prepareStatement(
-                            "select artifactid from artifact "
-                                    + "where repoowner = ? "
-                                    + "and reponame = ? "
-                                    + "and channel = ? "
-                                    + "and artifact = ?")) {
-                        statement.setString(1, artifact.getRepoOwner());
-                        statement.setString(2, artifact.getRepoName());
-                        statement.setString(3, artifact.getChannel());
-                        statement.setString(4, artifact.getArtifact());
-                        try (ResultSet resultSet = statement.executeQuery()) {
-                            if (resultSet.next()) {
-                                artifactId = resultSet.getLong("artifactid");
-                            }
-                        }
-                    }
-                    if (artifactId != null || attempt == 1) {
-                        break;
-                    }
+            store.write(rows, uniques, flushSequence + 1);
+            flushSequence++;
+            flushMetrics = new FlushMetrics(System.currentTimeMillis(), System.nanoTime() - start, rows.size(), flushMetrics.failures());
+        } catch (IOException e) {
+            Downloader.LOGGER.error("Failed to flush stats", e);
 
-                    try (PreparedStatement statement = connection.prepareStatement(
-                            "insert into artifact (repoowner, reponame, channel, artifact) values (?, ?, ?, ?)")) {
-                        statement.setString(1, artifact.getRepoOwner());
-                        statement.setString(2, artifact.getRepoName());
-                        statement.setString(3, artifact.getChannel());
-                        statement.setString(4, artifact.getArtifact());
-
-                        int rows;
-                        if ((rows = statement.executeUpdate()) != 1) {
-                            throw new SQLException("Failed to update exactly 1 row, actually: " + rows);
-                        }
-                    }
-                }
-                if (artifactId == null) {
-                    throw new IllegalStateException("artifactId may not be null after loop");
-                }
+            // Try again on the next flush
+            pending.forEach((counter, amounts) -> amounts.forEach((userAgent, amount) -> {
+                counter.add(userAgent, amount);
+                totals(counter).addAndGet(userAgent.ordinal(), -amount);
+            }));
+            sketches.forEach(sketch -> sketch.getValue().getValue().markChanged());
+            FlushMetrics previous = flushMetrics;
+            flushMetrics = new FlushMetrics(previous.time(), previous.duration(), previous.rows(), previous.failures() + 1);
+            return;
+        }
 
-                for (Map.Entry<UserAgent, AtomicInteger> entry : artifactEntry.getValue().entrySet()) {
-                    UserAgent userAgent = entry.getKey();
-                    AtomicInteger amount = entry.getValue();
-                    try (PreparedStatement statement = connection.prepareStatement(
-                            "select statsid, count from stats where artifactid = ? and version = ? and useragent = ? and date = ?")) {
-                        statement.setLong(1, artifactId);
-                        statement.setString(2, artifact.getVersion());
-                        statement.setByte(3, userAgent.sql());
-                        statement.setDate(4, today);
-                        try (ResultSet resultSet = statement.executeQuery()) {
-                            if (resultSet.next()) {
-                                long statsId = resultSet.getLong("statsid");
-                                int count = resultSet.getInt("count");
-
-                                try (PreparedStatement update = connection.prepareStatement(
-                                        "update stats set count = ? where statsid = ?")) {
-                                    update.setInt(1, count + amount.get());
-                                    update.setLong(2, statsId);
-
-                                    int rows;
-                                    if ((rows = update.executeUpdate()) != 1) {
-                                        throw new SQLException("Failed to update exactly 1 row, actually: " + rows);
-                                    }
-                                }
-                            } else {
-                                try (PreparedStatement insert = connection.prepareStatement(
-                                        "insert into stats (artifactid, version, useragent, date, count) values (?, ?, ?, ?, ?)")) {
-                                    insert.setLong(1, artifactId);
-                                    insert.setString(2, artifact.getVersion());
-                                    insert.setByte(3, userAgent.sql());
-                                    insert.setDate(4, today);
-                                    insert.setInt(5, amount.get());
-
-                                    int rows;
-                                    if ((rows = insert.executeUpdate()) != 1) {
-                                        throw new SQLException("Failed to update exactly 1 row, actually: " + rows);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+        // Stored, the journal's checkpoint is now from before this flush and would be skipped on replay.
+        // Checkpoint right away, so downloads counted since draining the counters aren't lost
+        checkpoint();
+
+        for (Pair<DownloadCounter, Map.Entry<LocalDate, HyperLogLog>> sketch : sketches) {
+            Map.Entry<LocalDate, HyperLogLog> entry = sketch.getValue();
+            // The day is over, unless it changed while writing there's nothing left to write
+            if (entry.getKey().isBefore(today) && !entry.getValue().isChanged()) {
+                sketch.getKey().getUniques().remove(entry.getKey(), entry.getValue());
             }
-        } catch (SQLException e) {
-            Downloader.LOGGER.error("Failed to flush stats", e);
         }
     }
 
-    @SuppressWarnings("MagicConstant")
-    private Date date(String date) {
+    private void compact() {
+        try {
+            store.compact();
+        } catch (IOException e) {
+            Downloader.LOGGER.error("Failed to compact stats", e);
+        }
+    }
+
+    public FlushMetrics flushMetrics() {
+        return flushMetrics;
+    }
+
+    private LocalDate date(String date) {
         if (date == null) {
             return null;
         }
@@ -207,20 +295,15 @@ public class StatsManager {
             throw new IllegalArgumentException("Invalid date");
         }
 
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(
+        return LocalDate.of(
                 Integer.parseInt(split[0]),
-                Integer.parseInt(split[1]) - 1,
-                Integer.parseInt(split[2]),
-                0,
-                0,
-                0
+                Integer.parseInt(split[1]),
+                Integer.parseInt(split[2])
         );
-
-        return new Date(calendar.getTimeInMillis());
     }
 
-    private Pair<String, List<PreparedConsumer>> where(
+    private StatsQuery statsQuery(
+            String group,
             String repoOwner,
             String repoName,
             String channel,
@@ -228,58 +311,57 @@ public class StatsManager {
             String version,
             String useragent,
             String from,
-            String to
+            String to,
+            int limit,
+            boolean unique
     ) {
-        List<String> requirements = new ArrayList<>();
-        List<PreparedConsumer> preparation = new ArrayList<>();
-
-        for (Pair<String, String> pair : Arrays.asList(
-                Pair.of("repoowner", repoOwner),
-                Pair.of("reponame", repoName),
-                Pair.of("channel", channel),
-                Pair.of("artifact", artifact),
-                Pair.of("version", version),
-                Pair.of("useragent", useragent)
-        )) {
-            String column = pair.getKey();
-            String value = pair.getValue();
-            if (value == null) {
-                continue;
+        if (group != null && !Pattern.compile("[a-zA-Z ]+").matcher(group).matches()) {
+            throw new IllegalArgumentException("group is not a-Z");
+        }
+        List<String> groups = new ArrayList<>();
+        if (group != null) {
+            for (String name : group.split(" ")) {
+                groups.add(name.toLowerCase(Locale.ROOT));
             }
+        }
 
-            String[] values = value.split(" ");
-            requirements.add("(" + Arrays.stream(values).map(key -> column + " = ?").collect(Collectors.joining(" or ")) + ")");
-            for (String v : values) {
-                if (column.equals("useragent")) {
-                    try {
-                        v = ((Byte) UserAgent.valueOf(v).sql()).toString();
-                    } catch (IllegalArgumentException ignored) {}
+        Map<String, Set<String>> filters = new HashMap<>();
+        List<String> values = Arrays.asList(repoOwner, repoName, channel, artifact, version, useragent);
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) != null) {
+                filters.put(COUNTER_KEY.get(i), new HashSet<>(Arrays.asList(values.get(i).split(" "))));
+            }
+        }
+        Set<String> userAgents = filters.get("useragent");
+        if (userAgents != null) {
+            // By name, or by the number used in the database
+            Set<String> names = new HashSet<>();
+            for (String value : userAgents) {
+                try {
+                    names.add(UserAgent.getBySql(value).name());
+                } catch (IllegalArgumentException ignored) {
+                    names.add(value);
                 }
-                String finalValue = v;
-                preparation.add((statement, i) -> statement.setString(i, finalValue));
             }
+            filters.put("useragent", names);
         }
-
-        Date fromDate = date(from);
-        if (fromDate != null) {
-            requirements.add("date >= ?");
-            preparation.add((statement, i) -> statement.setDate(i, fromDate));
+        if (unique && (userAgents != null || groups.contains("useragent"))) {
+            throw new IllegalArgumentException("Unique downloaders are not tracked by user agent");
         }
 
-        Date toDate = date(to);
-        if (to != null) {
-            requirements.add("date <= ?");
-            preparation.add((statement, i) -> statement.setDate(i, toDate));
+        LocalDate fromDate = date(from);
+        LocalDate toDate = date(to);
+        if (fromDate == null) {
+            fromDate = LocalDate.EPOCH;
         }
-
-        if (requirements.isEmpty()) {
-            return Pair.of("", preparation);
+        if (toDate == null) {
+            toDate = LocalDate.now();
+        }
+        if (fromDate.isAfter(toDate)) {
+            throw new IllegalArgumentException("from is after to");
         }
 
-        return Pair.of(
-                "where " + String.join(" and ", requirements),
-                preparation
-        );
+        return new StatsQuery(groups, filters, fromDate, toDate, Math.min(limit, 5000), unique);
     }
 
     public JsonNode query(
@@ -292,143 +374,233 @@ public class StatsManager {
             String useragent,
             String from,
             String to,
-            int limit
-    ) throws SQLException {
-        if (group != null && !Pattern.compile("[a-zA-Z ]+").matcher(group).matches()) {
-            throw new IllegalArgumentException("group is not a-Z");
-        }
-        if (limit > 5000) {
-            limit = 5000;
-        }
-
-        List<String> groups = group == null ? Collections.emptyList() : Arrays.asList(group.split(" "));
-        StringBuilder groupSelect = new StringBuilder();
-        if (!groups.isEmpty()) {
-            for (int i = 0; i < groups.size(); i++) {
-                groupSelect.append(groups.get(i)).append(" as group").append(i).append(", ");
-            }
-        }
-
-        Pair<String, List<PreparedConsumer>> where = where(repoOwner, repoName, channel, artifact, version, useragent, from, to);
-        String sql = "select " + groupSelect + " sum(count) as sum from stats "
-                + "inner join artifact on artifact.artifactid = stats.artifactid "
-                + where.getKey() + " " + (groups.isEmpty() ? "" : "group by " + (String.join(", ", groups))) + " limit ?";
+            int limit,
+            boolean unique
+    ) throws IOException {
+        StatsQuery query = statsQuery(group, repoOwner, repoName, channel, artifact, version, useragent, from, to, limit, unique);
+        List<StatsGroup> results = store.query(query);
 
         ObjectNode node = Downloader.OBJECT_MAPPER.createObjectNode();
-        try (PreparedStatement statement = connection.prepareStatement(sql)) {
-            int param = 0;
-            for (PreparedConsumer consumer : where.getValue()) {
-                consumer.consume(statement, ++param);
+        for (StatsGroup result : results) {
+            List<String> values = result.values();
+            if (values.isEmpty()) {
+                node.put("total_downloads", result.sum());
+                if (unique) {
+                    node.put("unique", result.unique());
+                }
+                continue;
             }
-            statement.setInt(++param, limit);
-
-            int count = 0;
-            try (ResultSet resultSet = statement.executeQuery()) {
-                while (resultSet.next()) {
-                    count++;
-                    if (groups.isEmpty()) {
-                        node.put("total_downloads", resultSet.getInt("sum"));
-                    } else {
-                        ObjectNode next = node;
-                        for (int i = 0; i < groups.size(); i++) {
-                            String value = resultSet.getString("group" + i).trim();
-
-                            String groupName = groups.get(i);
-                            if (groupName.equalsIgnoreCase("useragent")) {
-                                try {
-                                    value = UserAgent.getBySql(value).name();
-                                } catch (IllegalArgumentException ignored) {}
-                            }
-
-                            if (groups.size() - 1 == i) {
-                                // Last
-                                next.put(value, resultSet.getInt("sum"));
-                                continue;
-                            }
-
-                            // Create/get object node
-                            JsonNode obj = next.get(value);
-                            if (obj == null) {
-                                obj = next.putObject(value);
-                            }
-                            next = ((ObjectNode) obj);
-                        }
-                    }
+
+            ObjectNode next = node;
+            for (int i = 0; i < values.size() - 1; i++) {
+                // Create/get object node
+                JsonNode obj = next.get(values.get(i));
+                if (obj == null) {
+                    obj = next.putObject(values.get(i));
                 }
+                next = ((ObjectNode) obj);
             }
-            node.put("rows", count);
-        }
 
+            String last = values.get(values.size() - 1);
+            if (unique) {
+                ObjectNode leaf = next.putObject(last);
+                leaf.put("sum", result.sum());
+                leaf.put("unique", result.unique());
+            } else {
+                next.put(last, result.sum());
+            }
+        }
+        node.put("rows", results.size());
         return node;
     }
 
-    @Bean(destroyMethod = "close")
-    private Connection statsConnection() {
-        return connection;
-    }
+    /**
+     * Writes every row in the range, without a limit, as the store reads them (in no particular order).
+     * Rows are daily where those are still kept, otherwise weekly, the period column says which.
+     *
+     * @param csv CSV with a header line if {@code true}, otherwise newline delimited JSON
+     */
+    public void export(
+            String repoOwner,
+            String repoName,
+            String channel,
+            String artifact,
+            String version,
+            String useragent,
+            String from,
+            String to,
+            boolean csv,
+            OutputStream outputStream
+    ) throws IOException {
+        StatsQuery query = statsQuery(null, repoOwner, repoName, channel, artifact, version, useragent, from, to, 0, false);
+        if (csv) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            writer.write(String.join(",", EXPORT_COLUMNS));
+            writer.write("\r\n");
+            store.export(query, row -> {
+                List<String> values = exportValues(row);
+                for (int i = 0; i < values.size(); i++) {
+                    if (i != 0) {
+                        writer.write(',');
+                    }
 
-    @Bean(destroyMethod = "shutdown")
-    private ScheduledExecutorService statsExecutor() {
-        return executorService;
-    }
+                    String value = values.get(i);
+                    if (StringUtils.containsAny(value, ',', '"', '\r', '\n')) {
+                        value = '"' + value.replace("\"", "\"\"") + '"';
+                    }
+                    writer.write(value);
+                }
+                writer.write("\r\n");
+            });
+            writer.flush();
+            return;
+        }
 
-    @FunctionalInterface
-    public interface PreparedConsumer {
-        void consume(PreparedStatement statement, int index) throws SQLException;
+        try (JsonGenerator generator = Downloader.OBJECT_MAPPER.getFactory().createGenerator(outputStream)) {
+            // The response stream is closed by the caller
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+            store.export(query, row -> {
+                List<String> values = exportValues(row);
+                generator.writeStartObject();
+                for (int i = 0; i < EXPORT_COLUMNS.size() - 1; i++) {
+                    generator.writeStringField(EXPORT_COLUMNS.get(i), values.get(i));
+                }
+                generator.writeNumberField("count", row.count());
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+            });
+        }
     }
 
-    public static final class Artifact {
-
-        private final String repoOwner;
-        private final String repoName;
-        private final String channelIdentifier;
-        private final String artifactIdentifier;
-        private final String version;
+    private List<String> exportValues(StatsRow row) {
+        StatsKey key = row.key();
+        return List.of(
+                row.date().toString(),
+                row.period().name().toLowerCase(Locale.ROOT),
+                key.repoOwner(),
+                key.repoName(),
+                key.channel(),
+                key.artifact(),
+                key.version(),
+                row.userAgent().name(),
+                Long.toString(row.count())
+        );
+    }
 
-        public Artifact(String repoOwner, String repoName, String channelIdentifier, String artifactIdentifier, String version) {
-            this.repoOwner = repoOwner;
-            this.repoName = repoName;
-            this.channelIdentifier = channelIdentifier;
-            this.artifactIdentifier = artifactIdentifier;
-            this.version = version;
+    /**
+     * All-time downloads including the ones that haven't been flushed yet, from memory without querying the database.
+     */
+    public JsonNode live(
+            String group,
+            String repoOwner,
+            String repoName,
+            String channel,
+            String artifact,
+            String version,
+            String useragent
+    ) {
+        List<Integer> groups = new ArrayList<>();
+        if (group != null) {
+            for (String name : group.split(" ")) {
+                int index = COUNTER_KEY.indexOf(name.toLowerCase(Locale.ROOT));
+                if (index == -1) {
+                    throw new IllegalArgumentException("Unknown group " + name);
+                }
+                groups.add(index);
+            }
         }
 
-        public String getRepoOwner() {
-            return repoOwner;
+        List<Set<String>> filters = new ArrayList<>();
+        for (String filter : Arrays.asList(repoOwner, repoName, channel, artifact, version, useragent)) {
+            filters.add(filter != null ? Set.of(filter.split(" ")) : null);
         }
 
-        public String getRepoName() {
-            return repoName;
-        }
+        Map<List<String>, Long> sums = new LinkedHashMap<>();
+        totals.forEach((key, amounts) -> addLive(key, amounts, counters.get(key), groups, filters, sums));
+        counters.forEach((key, counter) -> {
+            if (!totals.containsKey(key)) {
+                addLive(key, null, counter, groups, filters, sums);
+            }
+        });
 
-        public String getChannel() {
-            return channelIdentifier;
+        ObjectNode node = Downloader.OBJECT_MAPPER.createObjectNode();
+        if (groups.isEmpty()) {
+            node.put("total_downloads", sums.getOrDefault(Collections.<String>emptyList(), 0L));
+            return node;
         }
 
-        public String getArtifact() {
-            return artifactIdentifier;
+        sums.forEach((values, sum) -> {
+            ObjectNode next = node;
+            for (int i = 0; i < values.size() - 1; i++) {
+                JsonNode obj = next.get(values.get(i));
+                if (obj == null) {
+                    obj = next.putObject(values.get(i));
+                }
+                next = (ObjectNode) obj;
+            }
+            next.put(values.get(values.size() - 1), sum);
+        });
+        return node;
+    }
+
+    private void addLive(
+            List<String> key,
+            AtomicLongArray amounts,
+            DownloadCounter counter,
+            List<Integer> groups,
+            List<Set<String>> filters,
+            Map<List<String>, Long> sums
+    ) {
+        for (int i = 0; i < key.size(); i++) {
+            Set<String> filter = filters.get(i);
+            if (filter != null && !filter.contains(key.get(i))) {
+                return;
+            }
         }
 
-        public String getVersion() {
-            return version;
+        Set<String> userAgentFilter = filters.get(key.size());
+        for (UserAgent userAgent : UserAgent.values()) {
+            if (userAgentFilter != null && !userAgentFilter.contains(userAgent.name())) {
+                continue;
+            }
+
+            long amount = (amounts != null ? amounts.get(userAgent.ordinal()) : 0)
+                    + (counter != null ? counter.sum(userAgent) : 0);
+            if (amount == 0) {
+                continue;
+            }
+
+            List<String> values = new ArrayList<>(groups.size());
+            for (int index : groups) {
+                values.add(index < key.size() ? key.get(index) : userAgent.name());
+            }
+            sums.merge(values, amount, Long::sum);
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Artifact artifact = (Artifact) o;
-            return Objects.equals(repoOwner, artifact.repoOwner)
-                    && Objects.equals(repoName, artifact.repoName)
-                    && Objects.equals(channelIdentifier, artifact.channelIdentifier)
-                    && Objects.equals(artifactIdentifier, artifact.artifactIdentifier)
-                    && Objects.equals(version, artifact.version);
+    @PreDestroy
+    private void shutdown() {
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        flushStats();
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(repoOwner, repoName, channelIdentifier, artifactIdentifier, version);
+        try {
+            store.close();
+        } catch (IOException e) {
+            Downloader.LOGGER.error("Failed to close stats store", e);
         }
     }
 
+    /**
+     * @param time when the last successful flush happened (epoch millis)
+     * @param duration how long it took (nanoseconds)
+     * @param rows how many rows it wrote
+     * @param failures how many flushes have failed since startup
+     */
+    public record FlushMetrics(long time, long duration, int rows, long failures) {}
 }
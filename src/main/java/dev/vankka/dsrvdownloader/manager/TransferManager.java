@@ -0,0 +1,158 @@
+package dev.vankka.dsrvdownloader.manager;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import dev.vankka.dsrvdownloader.util.AsyncTransfer;
+import dev.vankka.dsrvdownloader.util.ConcurrencyLimiter;
+import dev.vankka.dsrvdownloader.util.SendfileUtil;
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.BucketConfiguration;
+import io.github.bucket4j.caffeine.CaffeineProxyManager;
+import io.github.bucket4j.distributed.BucketProxy;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+@Service
+public class TransferManager {
+
+    // A client that doesn't take any data for this long is dropped
+    private static final long WRITE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    // Tomcat doesn't say when a sendfile ends, the permit is held for as long as a slow client would take
+    private static final long SENDFILE_BYTES_PER_SECOND = 1024 * 1024;
+
+    private final Set<AsyncTransfer> transfers = ConcurrentHashMap.newKeySet();
+
+    // An idle server writes the first chunk well within a millisecond from memory, and within a few from disk
+    // (a 64KiB read, a seek on a spinning disk). Anything above these is waiting in a queue:
+    // for a container thread, and for disk transfers also behind other reads
+    private final ConcurrencyLimiter memoryLimiter = new ConcurrencyLimiter(256, 32, 2048, 5, TimeUnit.MILLISECONDS);
+    private final ConcurrencyLimiter diskLimiter = new ConcurrencyLimiter(64, 8, 512, 20, TimeUnit.MILLISECONDS);
+    private final ScheduledExecutorService executorService;
+
+    // 10 downloads per 1 minute, deltas included
+    @SuppressWarnings("unchecked")
+    private final CaffeineProxyManager<String> downloadRateLimit = new CaffeineProxyManager<>(
+            (Caffeine<String, RemoteBucketState>) (Object) Caffeine.newBuilder(),
+            Duration.ofMinutes(1)
+    );
+    private final Supplier<BucketConfiguration> rateLimitSupplier = () -> BucketConfiguration.builder()
+            .addLimit(Bandwidth.simple(10, Duration.ofMinutes(1))).build();
+
+    public TransferManager() {
+        this.executorService = Executors.newSingleThreadScheduledExecutor();
+        executorService.scheduleAtFixedRate(() -> {
+            long now = System.currentTimeMillis();
+            transfers.removeIf(transfer -> transfer.timeoutIfIdle(now, WRITE_TIMEOUT));
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param requester where the request came from, see {@link dev.vankka.dsrvdownloader.util.RequestSourceUtil}
+     * @throws ResponseStatusException 429 if the requester has downloaded too much recently
+     */
+    public void consumeRateLimit(String requester) {
+        BucketProxy bucket = downloadRateLimit.builder().build(requester, rateLimitSupplier);
+
+        if (!bucket.tryConsume(1)) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS);
+        }
+    }
+
+    /**
+     * Reserves a place for a transfer, the permit must be released once it ends.
+     *
+     * @throws ResponseStatusException 503 with a Retry-After header if too many transfers are already running
+     */
+    public ConcurrencyLimiter.Permit acquire(HttpServletResponse response, boolean inMemory) {
+        ConcurrencyLimiter limiter = inMemory ? memoryLimiter : diskLimiter;
+        ConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+        if (permit == null) {
+            // Drop the caching and range headers meant for the download
+            response.reset();
+            response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(limiter.retryAfterSeconds()));
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many downloads in progress");
+        }
+        return permit;
+    }
+
+    /**
+     * Hands the file range off to Tomcat's sendfile if the connector supports it, under a disk transfer permit.
+     *
+     * @param start the first byte to send (inclusive)
+     * @param end the last byte to send (exclusive)
+     * @return {@code false} if the connector can't do sendfile, see {@link SendfileUtil#sendfile(HttpServletRequest, Path, long, long)}
+     * @throws ResponseStatusException 503 with a Retry-After header if too many transfers are already running
+     */
+    public boolean sendfile(HttpServletRequest request, HttpServletResponse response, Path file, long start, long end) {
+        if (!SendfileUtil.isSupported(request)) {
+            return false;
+        }
+
+        ConcurrencyLimiter.Permit permit = acquire(response, false);
+        SendfileUtil.sendfile(request, file, start, end);
+
+        // No start latency to go by, this only holds the place
+        long holdMillis = TimeUnit.SECONDS.toMillis(end - start) / SENDFILE_BYTES_PER_SECOND;
+        executorService.schedule(() -> permit.release(-1), Math.max(1000, Math.min(WRITE_TIMEOUT, holdMillis)), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Writes the segments as the response body without holding on to the request thread,
+     * the headers must be set before calling this.
+     *
+     * @param onEnd called once the transfer ends
+     * @throws IOException if the transfer couldn't be started, the response is ended and {@code onEnd} isn't called
+     */
+    public void transfer(HttpServletRequest request, List<AsyncTransfer.Segment> segments, Consumer<AsyncTransfer.Result> onEnd) throws IOException {
+        AsyncContext asyncContext = request.startAsync();
+        try {
+            transfers.add(new AsyncTransfer(asyncContext, segments, onEnd));
+        } catch (IOException | RuntimeException e) {
+            // The headers are set for a body that won't come
+            HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            }
+            asyncContext.complete();
+            throw e;
+        }
+    }
+
+    public int activeTransfers() {
+        return transfers.size();
+    }
+
+    public ConcurrencyLimiter memoryLimiter() {
+        return memoryLimiter;
+    }
+
+    public ConcurrencyLimiter diskLimiter() {
+        return diskLimiter;
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executorService.shutdown();
+    }
+}
@@ -3,8 +3,13 @@ package dev.vankka.dsrvdownloader.model;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Artifact {
 
@@ -13,24 +18,23 @@ public class Artifact {
     private final long size;
     private final Path file;
     private final Path metaFile;
-    private byte[] content;
     private final String sha256;
+    private final Map<String, Path> deltasByFromIdentifier = new ConcurrentHashMap<>();
+    private volatile DownloadCounter downloadCounter;
 
     public Artifact(
             String identifier,
             String fileName,
             Path file,
             @Nullable Path metaFile,
-            @Nullable byte[] content,
             String sha256
     ) throws IOException {
         this(
                 identifier,
                 fileName,
-                content != null ? content.length : Files.size(file),
+                Files.size(file),
                 file,
                 metaFile,
-                content,
                 sha256
         );
     }
@@ -41,7 +45,6 @@ public class Artifact {
             long size,
             Path file,
             @Nullable Path metaFile,
-            @Nullable byte[] content,
             String sha256
     ) {
         this.identifier = identifier;
@@ -49,10 +52,20 @@ public class Artifact {
         this.size = size;
         this.file = file;
         this.metaFile = metaFile;
-        this.content = content;
         this.sha256 = sha256;
     }
 
+    /**
+     * Maps the file read-only into memory, the content lives in the page cache instead of on the heap.
+     */
+    public static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.load();
+            return buffer;
+        }
+    }
+
     public String getIdentifier() {
         return identifier;
     }
@@ -73,16 +86,23 @@ public class Artifact {
         return metaFile;
     }
 
-    @Nullable
-    public byte[] getContent() {
-        return content;
-    }
-
     public String getSha256() {
         return sha256;
     }
 
-    public void removeFromMemory() {
-        this.content = null;
+    /**
+     * Binary deltas that produce this artifact from the same artifact of another version, by that version's identifier.
+     */
+    public Map<String, Path> getDeltasByFromIdentifier() {
+        return deltasByFromIdentifier;
+    }
+
+    @Nullable
+    public DownloadCounter getDownloadCounter() {
+        return downloadCounter;
+    }
+
+    public void setDownloadCounter(DownloadCounter downloadCounter) {
+        this.downloadCounter = downloadCounter;
     }
 }
@@ -0,0 +1,22 @@
+package dev.vankka.dsrvdownloader.model;
+
+/**
+ * @param since when the channel entered this state (epoch millis)
+ */
+public record ChannelReadiness(
+        String repoOwner,
+        String repoName,
+        String channelName,
+        State state,
+        long since
+) {
+
+    public enum State {
+        LOADING,
+        READY,
+        /**
+         * Failed or took too long to load, the channel is unavailable until the next reload.
+         */
+        FAILED
+    }
+}
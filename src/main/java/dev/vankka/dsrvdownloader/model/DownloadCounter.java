@@ -0,0 +1,86 @@
+package dev.vankka.dsrvdownloader.model;
+
+import dev.vankka.dsrvdownloader.util.HyperLogLog;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Downloads of one artifact of one version that haven't been written to the database yet.
+ */
+public class DownloadCounter {
+
+    private final String repoOwner;
+    private final String repoName;
+    private final String channel;
+    private final String artifact;
+    private final String version;
+    private final LongAdder[] counts = new LongAdder[UserAgent.values().length];
+    private final Map<LocalDate, HyperLogLog> uniques = new ConcurrentHashMap<>();
+
+    public DownloadCounter(String repoOwner, String repoName, String channel, String artifact, String version) {
+        this.repoOwner = repoOwner;
+        this.repoName = repoName;
+        this.channel = channel;
+        this.artifact = artifact;
+        this.version = version;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public String getRepoOwner() {
+        return repoOwner;
+    }
+
+    public String getRepoName() {
+        return repoName;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public String getArtifact() {
+        return artifact;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public void increment(UserAgent userAgent) {
+        counts[userAgent.ordinal()].increment();
+    }
+
+    public void add(UserAgent userAgent, long amount) {
+        counts[userAgent.ordinal()].add(amount);
+    }
+
+    /**
+     * The downloads since the last {@link #sumThenReset(UserAgent)}.
+     */
+    public long sum(UserAgent userAgent) {
+        return counts[userAgent.ordinal()].sum();
+    }
+
+    /**
+     * The downloads since the last call, increments that happen at the same time are counted in the next call.
+     */
+    public long sumThenReset(UserAgent userAgent) {
+        return counts[userAgent.ordinal()].sumThenReset();
+    }
+
+    public void offerUnique(LocalDate date, long hash) {
+        uniques.computeIfAbsent(date, key -> new HyperLogLog()).offer(hash);
+    }
+
+    /**
+     * The unique downloaders by day, days are removed once they have been written to the database and are over.
+     */
+    public Map<LocalDate, HyperLogLog> getUniques() {
+        return uniques;
+    }
+}
@@ -0,0 +1,50 @@
+package dev.vankka.dsrvdownloader.model;
+
+import dev.vankka.dsrvdownloader.Downloader;
+import org.apache.tomcat.util.buf.HexUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response body serialized once, with its gzip variant and entity tag, for responses that are requested far
+ * more often than they change.
+ */
+public record EncodedResponse(
+        long generation,
+        String hash,
+        byte[] json,
+        byte[] gzip
+) {
+
+    /**
+     * Serializes the value, the hash is of the serialized bytes so it always matches the body.
+     */
+    public static EncodedResponse encode(long generation, Object value) {
+        try {
+            byte[] json = Downloader.OBJECT_MAPPER.writeValueAsBytes(value);
+            String hash = HexUtils.toHexString(MessageDigest.getInstance("SHA-256").digest(json));
+
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream(json.length / 4);
+            try (GZIPOutputStream outputStream = new GZIPOutputStream(gzip)) {
+                outputStream.write(json);
+            }
+            return new EncodedResponse(generation, hash, json, gzip.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Each encoding is a different representation, so it gets its own tag.
+     */
+    public String etag(boolean gzip) {
+        return "\"" + hash + (gzip ? "-gzip" : "") + "\"";
+    }
+}
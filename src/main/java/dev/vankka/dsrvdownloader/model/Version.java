@@ -44,6 +44,5 @@ public class Version {
 
     public void expireIn(Long expiry) {
         this.expiry = expiry;
-        artifactsByIdentifier.values().forEach(Artifact::removeFromMemory); // Don't keep expiring versions in memory
     }
 }
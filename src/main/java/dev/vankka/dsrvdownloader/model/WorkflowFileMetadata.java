@@ -1,14 +1,38 @@
 package dev.vankka.dsrvdownloader.model;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
 public class WorkflowFileMetadata {
 
     public String identifier;
+    // The file as it was when this was written, the digest is trusted while the size and modification time are the same
+    public String sha256;
+    public long size;
+    public long lastModified;
 
     @SuppressWarnings("unused") // Jackson
     public WorkflowFileMetadata() {}
 
-    public WorkflowFileMetadata(String identifier) {
+    public WorkflowFileMetadata(String identifier, Path file, String sha256) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
         this.identifier = identifier;
+        this.sha256 = sha256;
+        this.size = attributes.size();
+        this.lastModified = attributes.lastModifiedTime().toMillis();
     }
 
+    /**
+     * @return if the file still has the size and modification time it had when the digest was recorded
+     */
+    public boolean matches(Path file) throws IOException {
+        if (sha256 == null) {
+            return false;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return attributes.size() == size && attributes.lastModifiedTime().toMillis() == lastModified;
+    }
 }
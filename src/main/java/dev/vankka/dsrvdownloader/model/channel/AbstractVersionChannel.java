@@ -1,44 +1,98 @@
 package dev.vankka.dsrvdownloader.model.channel;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import dev.vankka.dsrvdownloader.Downloader;
 import dev.vankka.dsrvdownloader.config.SecurityConfig;
 import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
 import dev.vankka.dsrvdownloader.discord.DiscordMessage;
 import dev.vankka.dsrvdownloader.discord.DiscordWebhook;
+import dev.vankka.dsrvdownloader.manager.ArtifactCacheManager;
 import dev.vankka.dsrvdownloader.manager.ConfigManager;
 import dev.vankka.dsrvdownloader.model.Artifact;
+import dev.vankka.dsrvdownloader.model.EncodedResponse;
 import dev.vankka.dsrvdownloader.model.Version;
 import dev.vankka.dsrvdownloader.model.VersionCheck;
 import dev.vankka.dsrvdownloader.model.VersionResponse;
+import dev.vankka.dsrvdownloader.model.WorkflowFileMetadata;
+import dev.vankka.dsrvdownloader.util.BinaryDelta;
+import dev.vankka.dsrvdownloader.util.IO;
 import dev.vankka.dsrvdownloader.util.UrlUtil;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.tomcat.util.buf.HexUtils;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public abstract class AbstractVersionChannel implements VersionChannel {
 
+    protected static final String DELTA_EXTENSION = ".delta";
+    protected static final String METADATA_EXTENSION = ".metadata";
+    private static final String SNAPSHOT_EXTENSION = ".snapshot.json";
+    private static final String AT_OR_BELOW_PREFIX = "<=";
+    // Building a delta reads both artifacts into memory, one at a time across all channels
+    private static final ExecutorService DELTA_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "delta-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     protected final ConfigManager configManager;
     protected final DiscordWebhook discordWebhook;
+    protected final ArtifactCacheManager artifactCacheManager;
     protected final VersionChannelConfig config;
     protected final Map<String, Version> versions;
     protected final List<Version> versionsInOrder;
     protected final Map<String, DiscordMessage> messages;
-
-    public AbstractVersionChannel(ConfigManager configManager, DiscordWebhook discordWebhook, VersionChannelConfig config) {
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Pair<Long, String> versionsHash;
+    private volatile VersionCheckTable versionChecks;
+    private volatile boolean fromSnapshot;
+    // Webhooks and syncs add what's on GitHub one at a time, so they don't both add the same version.
+    // Snapshots are written after letting go of it, writing one doesn't hold up either
+    protected final ReentrantLock ingestLock = new ReentrantLock();
+    // Only for writing the snapshot file, so the newest snapshot is the one that's written last
+    private final Object snapshotLock = new Object();
+
+    // By base url (from the Host header, so this has to be bounded) and preferIdentifier
+    private final Cache<Pair<String, Boolean>, EncodedResponse> encodedVersionResponses = Caffeine.newBuilder()
+            .maximumSize(64)
+            .build();
+
+    public AbstractVersionChannel(
+            ConfigManager configManager,
+            DiscordWebhook discordWebhook,
+            ArtifactCacheManager artifactCacheManager,
+            VersionChannelConfig config
+    ) {
         this.configManager = configManager;
         this.discordWebhook = discordWebhook;
+        this.artifactCacheManager = artifactCacheManager;
         this.config = config;
         this.versions = new ConcurrentHashMap<>();
         this.versionsInOrder = new CopyOnWriteArrayList<>();
@@ -48,6 +102,9 @@ public abstract class AbstractVersionChannel implements VersionChannel {
     public void cleanupDirectory(boolean ignoreVersions) {
         try {
             Path store = store();
+            if (ignoreVersions) {
+                Files.deleteIfExists(snapshotFile());
+            }
 
             try (Stream<Path> folders = Files.list(store)) {
                 for (Path folder : folders.toList()) {
@@ -57,7 +114,8 @@ public abstract class AbstractVersionChannel implements VersionChannel {
                                 .filter(path -> ignoreVersions || versions.values().stream()
                                         .noneMatch(ver -> ver.getArtifactsByIdentifier().values()
                                                 .stream()
-                                                .anyMatch(art -> path.equals(art.getFile()) || path.equals(art.getMetaFile()))
+                                                .anyMatch(art -> path.equals(art.getFile()) || path.equals(art.getMetaFile())
+                                                        || art.getDeltasByFromIdentifier().containsValue(path))
                                         )
                                 )
                                 .collect(Collectors.toList());
@@ -108,7 +166,257 @@ public abstract class AbstractVersionChannel implements VersionChannel {
         return path;
     }
 
+    /**
+     * Loads the channel from GitHub and the files on disk, skipping versions that are already loaded.
+     */
+    protected abstract void load();
+
+    /**
+     * Adds the releases or runs that are newer than the newest known one.
+     */
+    protected abstract void syncIncremental();
+
+    @Override
+    public void sync(boolean full) {
+        if (fromSnapshot) {
+            reconcile();
+            return;
+        }
+
+        ingestLock.lock();
+        try {
+            if (full) {
+                load();
+            } else {
+                syncIncremental();
+            }
+        } finally {
+            ingestLock.unlock();
+        }
+        saveSnapshot();
+    }
+
+    @Override
+    public void reconcile() {
+        ingestLock.lock();
+        try {
+            if (!fromSnapshot) {
+                return;
+            }
+            fromSnapshot = false;
+
+            long start = System.currentTimeMillis();
+            load();
+            Downloader.LOGGER.info("Reconciled " + describe() + " with GitHub in " + (System.currentTimeMillis() - start) + "ms");
+        } finally {
+            ingestLock.unlock();
+        }
+        saveSnapshot();
+    }
+
+    private Path snapshotFile() throws IOException {
+        return store().resolveSibling(config.name() + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * Loads the versions from the snapshot, without making any requests or reading the artifacts (only their metadata).
+     * @return if the channel was loaded, if not nothing was changed
+     */
+    protected boolean loadSnapshot() {
+        ChannelSnapshot snapshot;
+        List<Version> snapshotVersions = new ArrayList<>();
+        try {
+            Path snapshotFile = snapshotFile();
+            if (!Files.exists(snapshotFile)) {
+                return false;
+            }
+
+            try (InputStream inputStream = Files.newInputStream(snapshotFile)) {
+                snapshot = Downloader.OBJECT_MAPPER.readValue(inputStream, ChannelSnapshot.class);
+            }
+
+            Path store = store();
+            for (ChannelSnapshot.Version snapshotVersion : snapshot.versions()) {
+                Path versionStore = store.resolve(snapshotVersion.identifier());
+
+                Map<String, Artifact> artifacts = new LinkedHashMap<>();
+                for (ChannelSnapshot.Artifact snapshotArtifact : snapshotVersion.artifacts()) {
+                    Path file = versionStore.resolve(snapshotArtifact.fileName());
+                    Path metaFile = snapshotArtifact.metaFile() ? file.resolveSibling(snapshotArtifact.fileName() + METADATA_EXTENSION) : null;
+
+                    // The digest is only trusted if the file is still the one it was recorded for
+                    WorkflowFileMetadata metadata = metaFile != null && Files.exists(file) ? readMetadata(metaFile) : null;
+                    if (metadata == null
+                            || metadata.size != snapshotArtifact.size()
+                            || !Objects.equals(metadata.sha256, snapshotArtifact.sha256())
+                            || !metadata.matches(file)) {
+                        Downloader.LOGGER.warn("Snapshot of " + describe() + " doesn't match " + file + ", loading from GitHub");
+                        return false;
+                    }
+
+                    artifacts.put(snapshotArtifact.identifier(), new Artifact(
+                            snapshotArtifact.identifier(),
+                            snapshotArtifact.fileName(),
+                            snapshotArtifact.size(),
+                            file,
+                            metaFile,
+                            snapshotArtifact.sha256()
+                    ));
+                }
+                snapshotVersions.add(new Version(snapshotVersion.identifier(), snapshotVersion.description(), artifacts));
+            }
+        } catch (IOException e) {
+            Downloader.LOGGER.warn("Failed to read the snapshot of " + describe() + ", loading from GitHub", e);
+            return false;
+        }
+
+        restoreSnapshot(snapshot);
+        for (Version version : snapshotVersions) {
+            putVersion(version, false);
+        }
+        fromSnapshot = true;
+        return true;
+    }
+
+    /**
+     * Writes what the channel currently knows to its snapshot, versions that are expiring are left out.
+     * Must not be called while holding the {@link #ingestLock}.
+     */
+    protected void saveSnapshot() {
+        synchronized (snapshotLock) {
+            writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() {
+        // The version list is copied on write and the other lists are swapped in whole, so this is a consistent copy
+        List<ChannelSnapshot.Version> snapshotVersions = new ArrayList<>();
+        for (Version version : versionsInOrder) {
+            if (version.getExpiry() != null) {
+                continue;
+            }
+
+            List<ChannelSnapshot.Artifact> snapshotArtifacts = new ArrayList<>();
+            for (Artifact artifact : version.getArtifactsByIdentifier().values()) {
+                snapshotArtifacts.add(new ChannelSnapshot.Artifact(
+                        artifact.getIdentifier(),
+                        artifact.getFileName(),
+                        artifact.getSize(),
+                        artifact.getSha256(),
+                        artifact.getMetaFile() != null
+                ));
+            }
+            snapshotVersions.add(new ChannelSnapshot.Version(version.getIdentifier(), version.getDescription(), snapshotArtifacts));
+        }
+
+        try {
+            Path snapshotFile = snapshotFile();
+            Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (OutputStream outputStream = Files.newOutputStream(temporaryFile)) {
+                Downloader.OBJECT_MAPPER.writeValue(outputStream, createSnapshot(snapshotVersions));
+            }
+            // The snapshot has to be on the device before it replaces the previous one
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Downloader.LOGGER.error("Failed to save the snapshot of " + describe(), e);
+        }
+    }
+
+    protected abstract ChannelSnapshot createSnapshot(List<ChannelSnapshot.Version> versions);
+    protected abstract void restoreSnapshot(ChannelSnapshot snapshot);
+
+    /**
+     * Orders the versions like {@link #identifiersInOrder()} and drops the ones that aren't among the newest ones to keep anymore,
+     * versions loaded from a snapshot can be out of date after loading from GitHub.
+     */
+    protected void retainVersions() {
+        List<String> identifiers = identifiersInOrder();
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < Math.min(identifiers.size(), config.versionsToKeep()); i++) {
+            positions.putIfAbsent(identifiers.get(i), i);
+        }
+
+        List<Version> retained = new ArrayList<>();
+        for (Version version : versionsInOrder) {
+            if (positions.containsKey(version.getIdentifier()) || version.getExpiry() != null) {
+                retained.add(version);
+            } else {
+                versions.remove(version.getIdentifier());
+                version.getArtifactsByIdentifier().values().forEach(artifactCacheManager::invalidate);
+            }
+        }
+        // Expiring versions are older than any version to keep
+        retained.sort(Comparator.comparingInt(version -> positions.getOrDefault(version.getIdentifier(), Integer.MAX_VALUE)));
+
+        if (!retained.equals(versionsInOrder)) {
+            // Reordered in place, readers can briefly see the order change but every version stays valid
+            versionsInOrder.retainAll(retained);
+            for (int i = 0; i < retained.size(); i++) {
+                versionsInOrder.set(i, retained.get(i));
+            }
+            versionsChanged();
+        }
+    }
+
+    /**
+     * @return the metadata, or {@code null} if there is none or it can't be read
+     */
+    protected WorkflowFileMetadata readMetadata(Path metaFile) {
+        if (!Files.exists(metaFile)) {
+            return null;
+        }
+
+        try (InputStream inputStream = Files.newInputStream(metaFile)) {
+            return Downloader.OBJECT_MAPPER.readValue(inputStream, WorkflowFileMetadata.class);
+        } catch (IOException e) {
+            Downloader.LOGGER.warn("Failed to read " + metaFile + " for " + describe(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Records the digest of a file that was just written, so it doesn't have to be read again when loading.
+     */
+    protected void writeMetadata(Path file, Path metaFile, String identifier, String sha256) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(metaFile)) {
+            Downloader.OBJECT_MAPPER.writeValue(outputStream, new WorkflowFileMetadata(identifier, file, sha256));
+        }
+    }
+
+    /**
+     * The sha256 of a stored file, from the metadata if the file hasn't changed since it was recorded.
+     * Otherwise the file is read and the metadata is written again.
+     */
+    protected String sha256(Path file, Path metaFile, WorkflowFileMetadata metadata, String identifier)
+            throws IOException, DigestException, NoSuchAlgorithmException {
+        if (metadata != null && metadata.matches(file)) {
+            return metadata.sha256;
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (IO io = new IO(Files.newInputStream(file)).withDigest(digest)) {
+            io.stream();
+        }
+        String sha256 = HexUtils.toHexString(digest.digest());
+        writeMetadata(file, metaFile, identifier, sha256);
+        return sha256;
+    }
+
     protected void putVersion(Version version, boolean newVersion) {
+        loadDeltas(version);
+        Pair<Version, Version> delta = null;
+        if (newVersion) {
+            if (!versionsInOrder.isEmpty()) {
+                delta = Pair.of(versionsInOrder.get(0), version);
+            }
+        } else if (!versionsInOrder.isEmpty()) {
+            // Loading from newest to oldest, the previously added version is newer
+            delta = Pair.of(version, versionsInOrder.get(versionsInOrder.size() - 1));
+        }
+
         versions.put(version.getIdentifier(), version);
         if (newVersion) {
             versionsInOrder.add(0, version);
@@ -116,6 +424,117 @@ public abstract class AbstractVersionChannel implements VersionChannel {
         } else {
             versionsInOrder.add(version);
         }
+        versionsChanged();
+
+        if (delta != null) {
+            // Offered once built, the version doesn't wait for it
+            Version from = delta.getLeft();
+            Version to = delta.getRight();
+            DELTA_EXECUTOR.execute(() -> createDeltas(from, to));
+        }
+    }
+
+    private Path deltaFile(Artifact artifact, String fromIdentifier) {
+        return artifact.getFile().resolveSibling(artifact.getFileName() + "." + fromIdentifier + DELTA_EXTENSION);
+    }
+
+    private void loadDeltas(Version version) {
+        for (Artifact artifact : version.getArtifactsByIdentifier().values()) {
+            String prefix = artifact.getFileName() + ".";
+            try (Stream<Path> files = Files.list(artifact.getFile().getParent())) {
+                files.forEach(file -> {
+                    String fileName = file.getFileName().toString();
+                    if (fileName.startsWith(prefix) && fileName.endsWith(DELTA_EXTENSION)) {
+                        String fromIdentifier = fileName.substring(prefix.length(), fileName.length() - DELTA_EXTENSION.length());
+                        artifact.getDeltasByFromIdentifier().put(fromIdentifier, file);
+                    }
+                });
+            } catch (IOException e) {
+                Downloader.LOGGER.error("Failed to load deltas for " + version.getIdentifier() + " of " + describe(), e);
+            }
+        }
+    }
+
+    private void createDeltas(Version from, Version to) {
+        if (versions.get(from.getIdentifier()) != from || versions.get(to.getIdentifier()) != to) {
+            // Removed while waiting
+            return;
+        }
+
+        for (Artifact artifact : to.getArtifactsByIdentifier().values()) {
+            Artifact fromArtifact = from.getArtifactsByIdentifier().get(artifact.getIdentifier());
+            if (fromArtifact == null || artifact.getDeltasByFromIdentifier().containsKey(from.getIdentifier())) {
+                continue;
+            }
+
+            Path deltaFile = deltaFile(artifact, from.getIdentifier());
+            Path temporaryFile = deltaFile.resolveSibling(deltaFile.getFileName() + ".tmp");
+            try {
+                BinaryDelta.create(fromArtifact.getFile(), artifact.getFile(), temporaryFile);
+
+                // Make sure the delta actually produces the artifact before offering it
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                try (OutputStream outputStream = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                    BinaryDelta.apply(fromArtifact.getFile(), temporaryFile, outputStream);
+                }
+                if (!HexUtils.toHexString(digest.digest()).equals(artifact.getSha256())) {
+                    throw new IOException("Delta doesn't reproduce the artifact");
+                }
+
+                Files.move(temporaryFile, deltaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                artifact.getDeltasByFromIdentifier().put(from.getIdentifier(), deltaFile);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                Downloader.LOGGER.error("Failed to create delta from " + from.getIdentifier()
+                                                + " to " + to.getIdentifier() + " for " + describe(), e);
+                try {
+                    Files.deleteIfExists(temporaryFile);
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Invalidates anything derived from the versions, the identifier list or their expiry.
+     */
+    protected void versionsChanged() {
+        generation.incrementAndGet();
+    }
+
+    @Override
+    public String versionsHash() {
+        Pair<Long, String> versionsHash = this.versionsHash;
+        long currentGeneration = generation.get();
+        if (versionsHash != null && versionsHash.getKey() == currentGeneration) {
+            return versionsHash.getValue();
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Consumer<Object> update = value -> digest.update((value + "\0").getBytes(StandardCharsets.UTF_8));
+        identifiersInOrder().forEach(update);
+        for (Version version : versionsInOrder) {
+            update.accept(version.getIdentifier());
+            update.accept(version.getDescription());
+            update.accept(version.getExpiry() != null);
+            for (Artifact artifact : version.getArtifactsByIdentifier().values()) {
+                update.accept(artifact.getIdentifier());
+                update.accept(artifact.getFileName());
+                update.accept(artifact.getSize());
+                update.accept(artifact.getSha256());
+            }
+        }
+        if (config.security() != null) {
+            config.security().forEach(update);
+        }
+
+        String hash = HexUtils.toHexString(digest.digest());
+        this.versionsHash = Pair.of(currentGeneration, hash);
+        return hash;
     }
 
     @Override
@@ -138,37 +557,67 @@ public abstract class AbstractVersionChannel implements VersionChannel {
         return UrlUtil.getUrl(request) + "/v2/" + repo() + "/" + config.name();
     }
 
-    private void securityCheck(
-            List<String> securityFailures,
-            AtomicBoolean vulnerability,
-            List<SecurityConfig> securityConfigs,
-            Predicate<SecurityConfig> check
-    ) {
-        for (SecurityConfig securityConfig : securityConfigs) {
-            if (check.test(securityConfig)) {
-                securityFailures.add(securityConfig.securityFailReason());
-                if (securityConfig.vulnerability()) {
-                    vulnerability.set(true);
-                }
-            }
+    @Override
+    public byte[] checkVersion(String comparedTo) {
+        VersionCheckTable versionChecks = this.versionChecks;
+        long currentGeneration = generation.get();
+        if (versionChecks == null || versionChecks.generation() != currentGeneration) {
+            // Every known version's amount changes when one is added, so the whole table is rebuilt once
+            versionChecks = buildVersionChecks(currentGeneration);
+            this.versionChecks = versionChecks;
         }
+
+        return versionChecks.byIdentifier().getOrDefault(comparedTo, versionChecks.unknown());
     }
 
-    @Override
-    public VersionCheck checkVersion(String comparedTo) {
-        List<String> securityFailures = new ArrayList<>();
-        AtomicBoolean vulnerability = new AtomicBoolean(false);
+    private VersionCheckTable buildVersionChecks(long generation) {
         List<SecurityConfig> securityConfigs = config.security() != null ? config.security() : Collections.emptyList();
 
-        securityCheck(securityFailures, vulnerability, securityConfigs, config -> config.versionIdentifier().equals(comparedTo));
+        Map<String, List<SecurityConfig>> exactRules = new HashMap<>();
+        Map<String, List<SecurityConfig>> atOrBelowRules = new HashMap<>();
+        for (SecurityConfig securityConfig : securityConfigs) {
+            String versionIdentifier = securityConfig.versionIdentifier();
+            exactRules.computeIfAbsent(versionIdentifier, key -> new ArrayList<>()).add(securityConfig);
+            if (versionIdentifier.startsWith(AT_OR_BELOW_PREFIX)) {
+                atOrBelowRules.computeIfAbsent(versionIdentifier.substring(AT_OR_BELOW_PREFIX.length()), key -> new ArrayList<>())
+                        .add(securityConfig);
+            }
+        }
 
-        int versionsBehind = versionsBehind(comparedTo, version ->
-                securityCheck(securityFailures, vulnerability, securityConfigs, config -> {
-                    String prefix = "<=";
-                    String versionIdentifier = config.versionIdentifier();
-                    return versionIdentifier.startsWith(prefix) && version.equals(versionIdentifier.substring(prefix.length()));
-                })
-        );
+        // A "<=" rule applies to its version and every version before it (further down the list)
+        Map<String, byte[]> byIdentifier = new HashMap<>();
+        List<SecurityConfig> applicableRules = new ArrayList<>();
+        List<String> identifiers = identifiersInOrder();
+        for (int i = 0; i < identifiers.size(); i++) {
+            String identifier = identifiers.get(i);
+            applicableRules.addAll(atOrBelowRules.getOrDefault(identifier, Collections.emptyList()));
+            if (!byIdentifier.containsKey(identifier)) {
+                byIdentifier.put(identifier, encodeVersionCheck(i, exactRules.get(identifier), applicableRules));
+            }
+        }
+
+        // Unknown versions could be older than any known version
+        for (Map.Entry<String, List<SecurityConfig>> entry : exactRules.entrySet()) {
+            if (!byIdentifier.containsKey(entry.getKey())) {
+                byIdentifier.put(entry.getKey(), encodeVersionCheck(-1, entry.getValue(), applicableRules));
+            }
+        }
+        byte[] unknown = encodeVersionCheck(-1, null, applicableRules);
+
+        return new VersionCheckTable(generation, byIdentifier, unknown);
+    }
+
+    private byte[] encodeVersionCheck(int versionsBehind, List<SecurityConfig> exactRules, List<SecurityConfig> atOrBelowRules) {
+        List<String> securityFailures = new ArrayList<>();
+        boolean vulnerability = false;
+        for (SecurityConfig securityConfig : exactRules != null ? exactRules : Collections.<SecurityConfig>emptyList()) {
+            securityFailures.add(securityConfig.securityFailReason());
+            vulnerability |= securityConfig.vulnerability();
+        }
+        for (SecurityConfig securityConfig : atOrBelowRules) {
+            securityFailures.add(securityConfig.securityFailReason());
+            vulnerability |= securityConfig.vulnerability();
+        }
 
         VersionCheck versionCheck = new VersionCheck();
         if (versionsBehind == -1) {
@@ -183,14 +632,34 @@ public abstract class AbstractVersionChannel implements VersionChannel {
         versionCheck.amountType = amountType(versionsBehind);
 
         versionCheck.securityIssues = securityFailures;
-        versionCheck.insecure = vulnerability.get();
+        versionCheck.insecure = vulnerability;
 
-        return versionCheck;
+        try {
+            return Downloader.OBJECT_MAPPER.writeValueAsBytes(versionCheck);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    protected abstract int versionsBehind(String comparedTo, Consumer<String> versionConsumer);
+    protected abstract List<String> identifiersInOrder();
     protected abstract String amountType(int amount);
 
+    @Override
+    public EncodedResponse encodedVersionResponse(HttpServletRequest request, boolean preferIdentifier) {
+        long currentGeneration = generation.get();
+        Pair<String, Boolean> key = Pair.of(getUrl(request), preferIdentifier);
+
+        EncodedResponse encodedResponse = encodedVersionResponses.getIfPresent(key);
+        if (encodedResponse != null && encodedResponse.generation() == currentGeneration) {
+            return encodedResponse;
+        }
+
+        // If the versions change while this is being built, the generation won't match and it'll be built again
+        encodedResponse = EncodedResponse.encode(currentGeneration, versionResponse(request, preferIdentifier));
+        encodedVersionResponses.put(key, encodedResponse);
+        return encodedResponse;
+    }
+
     @Override
     public VersionResponse versionResponse(HttpServletRequest request, boolean preferIdentifier) {
         String baseUrl = getUrl(request) + "/download/";
@@ -238,32 +707,54 @@ public abstract class AbstractVersionChannel implements VersionChannel {
             }
 
             version.expireIn(System.currentTimeMillis() + EXPIRE_AFTER);
+            // Don't keep expiring versions in memory
+            version.getArtifactsByIdentifier().values().forEach(artifactCacheManager::invalidate);
+            versionsChanged();
         }
     }
 
     @Override
     public void removeExpiredVersions() {
+        // Versions are being added or reordered, try again next time instead of waiting for GitHub
+        if (!ingestLock.tryLock()) {
+            return;
+        }
+
         List<Version> versionsToRemove = new ArrayList<>();
-        List<String> identifiersToRemove = new ArrayList<>();
-        long time = System.currentTimeMillis();
+        try {
+            List<String> identifiersToRemove = new ArrayList<>();
+            long time = System.currentTimeMillis();
 
-        for (Version version : versionsInOrder) {
-            if (version.getExpiry() != null && version.getExpiry() < time) {
-                versionsToRemove.add(version);
-                identifiersToRemove.add(version.getIdentifier());
+            for (Version version : versionsInOrder) {
+                if (version.getExpiry() != null && version.getExpiry() < time) {
+                    versionsToRemove.add(version);
+                    identifiersToRemove.add(version.getIdentifier());
+                }
+            }
+
+            if (versionsToRemove.isEmpty()) {
+                return;
             }
-        }
 
-        versionsInOrder.removeAll(versionsToRemove);
-        identifiersToRemove.forEach(versions::remove);
+            versionsInOrder.removeAll(versionsToRemove);
+            identifiersToRemove.forEach(versions::remove);
+            versionsChanged();
+        } finally {
+            ingestLock.unlock();
+        }
+        saveSnapshot();
 
         for (Version version : versionsToRemove) {
             try {
                 Path parent = null;
                 for (Artifact artifact : version.getArtifactsByIdentifier().values()) {
+                    artifactCacheManager.invalidate(artifact);
                     Path file = artifact.getFile();
                     Files.delete(file);
                     Files.deleteIfExists(artifact.getMetaFile());
+                    for (Path deltaFile : artifact.getDeltasByFromIdentifier().values()) {
+                        Files.deleteIfExists(deltaFile);
+                    }
                     parent = file.getParent();
                 }
                 if (parent != null && !parent.equals(store())) {
@@ -329,4 +820,6 @@ public abstract class AbstractVersionChannel implements VersionChannel {
 
         discordWebhook.processMessage(discordMessage.setMessage(message, longerMessage));
     }
+
+    private record VersionCheckTable(long generation, Map<String, byte[]> byIdentifier, byte[] unknown) {}
 }
@@ -0,0 +1,29 @@
+package dev.vankka.dsrvdownloader.model.channel;
+
+import dev.vankka.dsrvdownloader.model.github.Release;
+import dev.vankka.dsrvdownloader.model.github.WorkflowRun;
+
+import java.util.List;
+
+/**
+ * What a channel knew about its repository and versions, so it can start without asking GitHub.
+ *
+ * @param workflowId the workflow of a workflow channel
+ * @param releases the releases of a release channel, newest first
+ * @param workflowRuns the runs of a workflow channel, newest first
+ * @param versions the versions that were loaded (not expiring), newest first
+ */
+public record ChannelSnapshot(
+        Long workflowId,
+        List<Release> releases,
+        List<WorkflowRun> workflowRuns,
+        List<Version> versions
+) {
+
+    /**
+     * The files are in the version's own directory in the channel's store, which is named after the identifier.
+     */
+    public record Version(String identifier, String description, List<Artifact> artifacts) {}
+
+    public record Artifact(String identifier, String fileName, long size, String sha256, boolean metaFile) {}
+}
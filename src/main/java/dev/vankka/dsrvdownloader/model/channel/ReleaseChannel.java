@@ -7,6 +7,7 @@ import dev.vankka.dsrvdownloader.Downloader;
 import dev.vankka.dsrvdownloader.config.VersionArtifactConfig;
 import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
 import dev.vankka.dsrvdownloader.discord.DiscordWebhook;
+import dev.vankka.dsrvdownloader.manager.ArtifactCacheManager;
 import dev.vankka.dsrvdownloader.manager.ConfigManager;
 import dev.vankka.dsrvdownloader.model.Artifact;
 import dev.vankka.dsrvdownloader.model.Version;
@@ -20,7 +21,6 @@ import okhttp3.ResponseBody;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.tomcat.util.buf.HexUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -28,60 +28,179 @@ import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 public class ReleaseChannel extends AbstractVersionChannel {
 
     private static final int RELEASES_PER_PAGE = 100;
 
-    private List<Release> releases;
+    private volatile List<Release> releases;
+
+    public ReleaseChannel(
+            ConfigManager configManager,
+            DiscordWebhook discordWebhook,
+            ArtifactCacheManager artifactCacheManager,
+            VersionChannelConfig config
+    ) {
+        super(configManager, discordWebhook, artifactCacheManager, config);
+        if (!loadSnapshot()) {
+            load();
+            saveSnapshot();
+        }
+    }
 
-    public ReleaseChannel(ConfigManager configManager, DiscordWebhook discordWebhook, VersionChannelConfig config) {
-        super(configManager, discordWebhook, config);
+    @Override
+    protected void load() {
         refresh();
         if (releases == null || releases.isEmpty()) {
             return;
         }
         loadFiles();
+        retainVersions();
         cleanupDirectory(false);
     }
 
     @Override
-    public void refresh() {
-        releases = new ArrayList<>();
+    protected ChannelSnapshot createSnapshot(List<ChannelSnapshot.Version> versions) {
+        return new ChannelSnapshot(null, releases, null, versions);
+    }
 
-        int page = 1;
-        while (true) {
-            Request request = new Request.Builder()
-                    .url(baseRepoApiUrl() + "/releases?page=" + page + "&per_page=" + RELEASES_PER_PAGE)
-                    .get().build();
-
-            try (Response response = configManager.httpClient().newCall(request).execute()) {
-                ResponseBody body = response.body();
-                if (!response.isSuccessful() || body == null) {
-                    Downloader.LOGGER.error(
-                            "Failed to get releases for " + describe() + " (" + request.url() + "): "
-                                    + HttpContentUtil.prettify(response, body));
+    @Override
+    protected void restoreSnapshot(ChannelSnapshot snapshot) {
+        this.releases = snapshot.releases() != null ? new ArrayList<>(snapshot.releases()) : new ArrayList<>();
+    }
+
+    @Override
+    public void refresh() {
+        List<Release> releases = new ArrayList<>();
+        boolean complete = false;
+        try {
+            int page = 1;
+            while (true) {
+                List<Release> currentReleases;
+                try {
+                    currentReleases = fetchReleases(page);
+                } catch (IOException e) {
+                    Downloader.LOGGER.error("Failed to get releases for repository " + repo(), e);
+                    return;
+                }
+                if (currentReleases == null) {
                     return;
                 }
 
-                List<Release> currentReleases = Downloader.OBJECT_MAPPER.readValue(body.byteStream(), new TypeReference<>(){});
                 releases.addAll(currentReleases);
-
                 if (currentReleases.size() < RELEASES_PER_PAGE) {
                     break;
                 }
+
+                page++;
+            }
+            complete = true;
+        } finally {
+            // Swapped in whole, readers never see a partially filled list. If GitHub fails, the releases that are already known are kept
+            if (complete || this.releases == null) {
+                this.releases = releases;
+                versionsChanged();
+            }
+        }
+    }
+
+    /**
+     * @return the releases on the page (newest first), or {@code null} if GitHub didn't respond successfully
+     */
+    private List<Release> fetchReleases(int page) throws IOException {
+        Request request = new Request.Builder()
+                .url(baseRepoApiUrl() + "/releases?page=" + page + "&per_page=" + RELEASES_PER_PAGE)
+                .get().build();
+
+        try (Response response = configManager.httpClient().newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                Downloader.LOGGER.error(
+                        "Failed to get releases for " + describe() + " (" + request.url() + "): "
+                                + HttpContentUtil.prettify(response, body));
+                return null;
+            }
+
+            return Downloader.OBJECT_MAPPER.readValue(body.byteStream(), new TypeReference<>(){});
+        }
+    }
+
+    @Override
+    protected void syncIncremental() {
+        List<Release> knownReleases = releases;
+        if (knownReleases == null || knownReleases.isEmpty()) {
+            load();
+            return;
+        }
+
+        Set<String> knownTags = new HashSet<>();
+        for (Release release : knownReleases) {
+            knownTags.add(release.tag_name());
+        }
+
+        // Newest first, until the first release that is already known
+        List<Release> newReleases = new ArrayList<>();
+        int page = 1;
+        pages:
+        while (true) {
+            List<Release> currentReleases;
+            try {
+                currentReleases = fetchReleases(page);
             } catch (IOException e) {
                 Downloader.LOGGER.error("Failed to get releases for repository " + repo(), e);
                 return;
             }
+            if (currentReleases == null) {
+                return;
+            }
+
+            for (Release release : currentReleases) {
+                if (knownTags.contains(release.tag_name())) {
+                    break pages;
+                }
+                newReleases.add(release);
+            }
+            if (currentReleases.size() < RELEASES_PER_PAGE) {
+                break;
+            }
 
             page++;
         }
+        if (newReleases.isEmpty()) {
+            return;
+        }
+
+        List<Release> releases = new ArrayList<>(newReleases);
+        releases.addAll(knownReleases);
+        this.releases = releases;
+        versionsChanged();
+
+        // Oldest first, like they would have arrived by webhook
+        for (int i = Math.min(newReleases.size(), config.versionsToKeep()) - 1; i >= 0; i--) {
+            Release release = newReleases.get(i);
+            if (versions.containsKey(release.tag_name())) {
+                continue;
+            }
+
+            processing(release.tag_name(), release.name());
+            try {
+                try {
+                    includeRelease(release, true);
+                } catch (IOException | DigestException | NoSuchAlgorithmException e) {
+                    throw new InclusionException(e);
+                }
+
+                success(release.tag_name(), release.name());
+            } catch (InclusionException e) {
+                failed(release.tag_name(), release.name(), e.getMessage(), e.getLonger());
+            }
+
+            expireOldestVersion();
+        }
     }
 
-    private void includeRelease(Release release, boolean inMemory, boolean newVersion)
+    private void includeRelease(Release release, boolean newVersion)
             throws IOException, RuntimeException, InclusionException, DigestException, NoSuchAlgorithmException {
         Path store = store().resolve(release.tag_name());
 
@@ -109,14 +228,15 @@ public class ReleaseChannel extends AbstractVersionChannel {
 
             String fileName = asset.name();
             Path file = store.resolve(fileName);
+            Path metaFile = store.resolve(fileName + METADATA_EXTENSION);
 
-            byte[] bytes = null;
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String sha256;
             if (!Files.exists(file)) {
                 Request request = new Request.Builder()
                         .url(asset.browser_download_url())
                         .get().build();
 
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
                 try (Response response = configManager.httpClient().newCall(request).execute()) {
                     ResponseBody body = response.body();
                     if (!response.isSuccessful() || body == null) {
@@ -131,29 +251,14 @@ public class ReleaseChannel extends AbstractVersionChannel {
                             .withDigest(digest)
                             .withOutputStream(Files.newOutputStream(file))
                     ) {
-                        if (inMemory) {
-                            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                            io.withOutputStream(byteStream).stream();
-
-                            bytes = byteStream.toByteArray();
-                        } else {
-                            io.stream();
-                        }
-                    }
-                }
-            } else {
-                try (IO io = new IO(Files.newInputStream(file))
-                        .withDigest(digest)
-                ) {
-                    if (inMemory) {
-                        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                        io.withOutputStream(byteStream).stream();
-
-                        bytes = byteStream.toByteArray();
-                    } else {
                         io.stream();
                     }
                 }
+
+                sha256 = HexUtils.toHexString(digest.digest());
+                writeMetadata(file, metaFile, artifactId, sha256);
+            } else {
+                sha256 = sha256(file, metaFile, readMetadata(metaFile), artifactId);
             }
 
             artifacts.put(
@@ -162,9 +267,8 @@ public class ReleaseChannel extends AbstractVersionChannel {
                             artifactId,
                             fileName,
                             file,
-                            null,
-                            bytes,
-                            HexUtils.toHexString(digest.digest())
+                            metaFile,
+                            sha256
                     )
             );
         }
@@ -176,8 +280,12 @@ public class ReleaseChannel extends AbstractVersionChannel {
         int max = Math.min(config.versionsToKeep(), releases.size());
         for (int i = 0; i < max; i++) {
             Release release = releases.get(i);
+            if (versions.containsKey(release.tag_name())) {
+                // Loaded from the snapshot
+                continue;
+            }
             try {
-                includeRelease(release, config.versionsToKeepInMemory() > i, false);
+                includeRelease(release, false);
             } catch (IOException | InclusionException | DigestException | NoSuchAlgorithmException e) {
                 setLastDiscordMessage(release.tag_name(), "[Refresh] Failed to load release " + release.tag_name() + " [`" + describe() + "`]", ExceptionUtils.getStackTrace(e));
             }
@@ -185,15 +293,11 @@ public class ReleaseChannel extends AbstractVersionChannel {
     }
 
     @Override
-    public int versionsBehind(String comparedTo, Consumer<String> versionConsumer) {
-        for (int i = 0; i < releases.size(); i++) {
-            String tagName = releases.get(i).tag_name();
-            versionConsumer.accept(tagName);
-            if (tagName.equals(comparedTo)) {
-                return i;
-            }
+    protected List<String> identifiersInOrder() {
+        if (releases == null) {
+            return Collections.emptyList();
         }
-        return -1;
+        return releases.stream().map(Release::tag_name).toList();
     }
 
     @Override
@@ -225,22 +329,39 @@ public class ReleaseChannel extends AbstractVersionChannel {
             waiting(release.tag_name(), release.name(), "for [release](<" + release.html_url() + ">) to publish");
             return;
         }
+        ingestLock.lock();
+        try {
+            if (versions.containsKey(release.tag_name())) {
+                // Already picked up by a sync
+                return;
+            }
 
-        processing(release.tag_name(), release.name());
-        releases.add(0, release);
+            processing(release.tag_name(), release.name());
+            // Copied rather than modified in place, readers may be iterating the current list
+            List<Release> releases = new ArrayList<>();
+            releases.add(release);
+            if (this.releases != null) {
+                releases.addAll(this.releases);
+            }
+            this.releases = releases;
+            versionsChanged();
 
-        try {
             try {
-                includeRelease(release, config.versionsToKeepInMemory() >= 1, true);
-            } catch (IOException | DigestException | NoSuchAlgorithmException e) {
-                throw new InclusionException(e);
+                try {
+                    includeRelease(release, true);
+                } catch (IOException | DigestException | NoSuchAlgorithmException e) {
+                    throw new InclusionException(e);
+                }
+
+                success(release.tag_name(), release.name());
+            } catch (InclusionException e) {
+                failed(release.tag_name(), release.name(), e.getMessage(), e.getLonger());
             }
 
-            success(release.tag_name(), release.name());
-        } catch (InclusionException e) {
-            failed(release.tag_name(), release.name(), e.getMessage(), e.getLonger());
+            expireOldestVersion();
+        } finally {
+            ingestLock.unlock();
         }
-
-        expireOldestVersion();
+        saveSnapshot();
     }
 }
@@ -2,6 +2,7 @@ package dev.vankka.dsrvdownloader.model.channel;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
+import dev.vankka.dsrvdownloader.model.EncodedResponse;
 import dev.vankka.dsrvdownloader.model.Version;
 import dev.vankka.dsrvdownloader.model.VersionCheck;
 import dev.vankka.dsrvdownloader.model.VersionResponse;
@@ -21,9 +22,23 @@ public interface VersionChannel {
     Version latestVersion();
     String getUrl(HttpServletRequest request);
     VersionResponse versionResponse(HttpServletRequest request, boolean preferIdentifier);
-    VersionCheck checkVersion(String comparedTo);
+    EncodedResponse encodedVersionResponse(HttpServletRequest request, boolean preferIdentifier);
+    String versionsHash();
+    /**
+     * @return the serialized {@link VersionCheck} for the given version identifier
+     */
+    byte[] checkVersion(String comparedTo);
     void receiveWebhook(String event, JsonNode node);
     void removeExpiredVersions();
+    /**
+     * Catches up with GitHub if the channel was started from its snapshot, otherwise does nothing.
+     */
+    void reconcile();
+    /**
+     * Picks up releases or runs that were missed, like when a webhook didn't arrive.
+     * An incremental sync stops at the first one that is already known, a full sync lists everything again to also notice removals.
+     */
+    void sync(boolean full);
 
     VersionChannelConfig getConfig();
 
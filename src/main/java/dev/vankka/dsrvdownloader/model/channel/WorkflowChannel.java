@@ -6,6 +6,7 @@ import dev.vankka.dsrvdownloader.Downloader;
 import dev.vankka.dsrvdownloader.config.VersionArtifactConfig;
 import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
 import dev.vankka.dsrvdownloader.discord.DiscordWebhook;
+import dev.vankka.dsrvdownloader.manager.ArtifactCacheManager;
 import dev.vankka.dsrvdownloader.manager.ConfigManager;
 import dev.vankka.dsrvdownloader.model.Artifact;
 import dev.vankka.dsrvdownloader.model.Version;
@@ -19,12 +20,11 @@ import okhttp3.Response;
 import okhttp3.ResponseBody;
 import org.apache.commons.io.file.PathUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
-import org.apache.commons.lang3.tuple.Triple;
 import org.apache.tomcat.util.buf.HexUtils;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -34,7 +34,6 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -42,23 +41,50 @@ import java.util.zip.ZipInputStream;
 
 public class WorkflowChannel extends AbstractVersionChannel {
 
-    private static final String METADATA_EXTENSION = ".metadata";
     private static final int WORKFLOWS_PER_PAGE = 100;
     private static final int WORKFLOWS_RUNS_PER_PAGE = 100;
 
     private static final int ARTIFACT_REATTEMPTS = 5;
     private static final long ARTIFACT_REATTEMPT_DELAY = TimeUnit.SECONDS.toMillis(5);
 
-    private Workflow workflow;
-    private List<WorkflowRun> workflowRuns;
+    private volatile Workflow workflow;
+    private volatile List<WorkflowRun> workflowRuns;
+
+    public WorkflowChannel(
+            ConfigManager configManager,
+            DiscordWebhook discordWebhook,
+            ArtifactCacheManager artifactCacheManager,
+            VersionChannelConfig config
+    ) {
+        super(configManager, discordWebhook, artifactCacheManager, config);
+        if (!loadSnapshot()) {
+            load();
+            saveSnapshot();
+        }
+    }
 
-    public WorkflowChannel(ConfigManager configManager, DiscordWebhook discordWebhook, VersionChannelConfig config) {
-        super(configManager, discordWebhook, config);
+    @Override
+    protected void load() {
         updateWorkflows();
         if (workflow == null || workflowRuns == null || workflowRuns.isEmpty()) {
             return;
         }
         refresh();
+        retainVersions();
+    }
+
+    @Override
+    protected ChannelSnapshot createSnapshot(List<ChannelSnapshot.Version> versions) {
+        Workflow workflow = this.workflow;
+        return new ChannelSnapshot(workflow != null ? workflow.id() : null, null, workflowRuns, versions);
+    }
+
+    @Override
+    protected void restoreSnapshot(ChannelSnapshot snapshot) {
+        if (snapshot.workflowId() != null) {
+            this.workflow = new Workflow(snapshot.workflowId(), config.workflowFile());
+        }
+        this.workflowRuns = snapshot.workflowRuns() != null ? new ArrayList<>(snapshot.workflowRuns()) : new ArrayList<>();
     }
 
     private void updateWorkflows() {
@@ -99,38 +125,142 @@ public class WorkflowChannel extends AbstractVersionChannel {
         }
 
         int pages = config.pagesOfRunsToKeep();
-        workflowRuns = new ArrayList<>(pages * WORKFLOWS_RUNS_PER_PAGE);
-        for (int i = 0; i < pages; i++) {
-            Request request = new Request.Builder()
-                    .url(baseRepoApiUrl()
-                                 + "/actions/workflows/" + Long.toUnsignedString(workflow.id()) + "/runs"
-                                 + "?status=success&event=push&branch=" + config.branch()
-                                 + "&per_page=" + WORKFLOWS_RUNS_PER_PAGE + "&page=" + (i + 1))
-                    .get().build();
-
-            try (Response response = configManager.httpClient().newCall(request).execute()) {
-                ResponseBody body = response.body();
-                if (!response.isSuccessful() || body == null) {
-                    Downloader.LOGGER.error(
-                            "Failed to get workflow runs for " + describe() + " (" + request.url() + "): "
-                                    + HttpContentUtil.prettify(response, body));
+        List<WorkflowRun> runs = new ArrayList<>(pages * WORKFLOWS_RUNS_PER_PAGE);
+        boolean complete = false;
+        try {
+            for (int i = 0; i < pages; i++) {
+                WorkflowRunPaging workflowRunPaging;
+                try {
+                    workflowRunPaging = fetchRuns(workflow, i + 1);
+                } catch (IOException e) {
+                    Downloader.LOGGER.error("Failed to get workflow runs for " + describe(), e);
                     return;
                 }
-
-                WorkflowRunPaging workflowRunPaging = Downloader.OBJECT_MAPPER.readValue(body.byteStream(), WorkflowRunPaging.class);
-                if (workflowRunPaging == null || workflowRunPaging.workflow_runs() == null) {
-                    Downloader.LOGGER.error(
-                            "Failed to get workflow runs for " + describe() + ": Failed to parse json");
+                if (workflowRunPaging == null) {
                     return;
                 }
 
-                workflowRuns.addAll(workflowRunPaging.workflow_runs());
+                runs.addAll(workflowRunPaging.workflow_runs());
                 if (workflowRunPaging.total_count() < WORKFLOWS_RUNS_PER_PAGE) {
                     break;
                 }
+            }
+            complete = true;
+        } finally {
+            // Swapped in whole, readers never see a partially filled list. If GitHub fails, the runs that are already known are kept
+            if (complete || workflowRuns == null) {
+                workflowRuns = runs;
+                versionsChanged();
+            }
+        }
+    }
+
+    /**
+     * @return the page of successful push runs on the branch (newest first), or {@code null} if GitHub didn't respond successfully
+     */
+    private WorkflowRunPaging fetchRuns(Workflow workflow, int page) throws IOException {
+        Request request = new Request.Builder()
+                .url(baseRepoApiUrl()
+                             + "/actions/workflows/" + Long.toUnsignedString(workflow.id()) + "/runs"
+                             + "?status=success&event=push&branch=" + config.branch()
+                             + "&per_page=" + WORKFLOWS_RUNS_PER_PAGE + "&page=" + page)
+                .get().build();
+
+        try (Response response = configManager.httpClient().newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                Downloader.LOGGER.error(
+                        "Failed to get workflow runs for " + describe() + " (" + request.url() + "): "
+                                + HttpContentUtil.prettify(response, body));
+                return null;
+            }
+
+            WorkflowRunPaging workflowRunPaging = Downloader.OBJECT_MAPPER.readValue(body.byteStream(), WorkflowRunPaging.class);
+            if (workflowRunPaging == null || workflowRunPaging.workflow_runs() == null) {
+                Downloader.LOGGER.error(
+                        "Failed to get workflow runs for " + describe() + ": Failed to parse json");
+                return null;
+            }
+            return workflowRunPaging;
+        }
+    }
+
+    @Override
+    protected void syncIncremental() {
+        Workflow workflow = this.workflow;
+        List<WorkflowRun> knownRuns = workflowRuns;
+        if (workflow == null || knownRuns == null || knownRuns.isEmpty()) {
+            load();
+            return;
+        }
+
+        Set<Long> knownIds = new HashSet<>();
+        for (WorkflowRun run : knownRuns) {
+            knownIds.add(run.id());
+        }
+
+        // Newest first, until the first run that is already known
+        int pages = config.pagesOfRunsToKeep();
+        List<WorkflowRun> newRuns = new ArrayList<>();
+        pages:
+        for (int i = 0; i < pages; i++) {
+            WorkflowRunPaging workflowRunPaging;
+            try {
+                workflowRunPaging = fetchRuns(workflow, i + 1);
             } catch (IOException e) {
-                Downloader.LOGGER.error("Failed to get releases for  " + describe(), e);
+                Downloader.LOGGER.error("Failed to get workflow runs for " + describe(), e);
+                return;
+            }
+            if (workflowRunPaging == null) {
+                return;
+            }
+
+            for (WorkflowRun run : workflowRunPaging.workflow_runs()) {
+                if (knownIds.contains(run.id())) {
+                    break pages;
+                }
+                newRuns.add(run);
+            }
+            if (workflowRunPaging.workflow_runs().size() < WORKFLOWS_RUNS_PER_PAGE) {
+                break;
+            }
+        }
+        if (newRuns.isEmpty()) {
+            return;
+        }
+
+        List<WorkflowRun> runs = new ArrayList<>(newRuns);
+        runs.addAll(knownRuns);
+        if (runs.size() > pages * WORKFLOWS_RUNS_PER_PAGE) {
+            runs = new ArrayList<>(runs.subList(0, pages * WORKFLOWS_RUNS_PER_PAGE));
+        }
+        workflowRuns = runs;
+        versionsChanged();
+
+        // Oldest first, like they would have arrived by webhook
+        for (int i = Math.min(newRuns.size(), config.versionsToKeep()) - 1; i >= 0; i--) {
+            WorkflowRun run = newRuns.get(i);
+            String id = run.head_sha();
+            if (versions.containsKey(id)) {
+                continue;
+            }
+
+            Commit headCommit = run.head_commit();
+            String description = headCommit != null ? headCommit.message() : null;
+            processing(id, description);
+            try {
+                try {
+                    includeRun(run, true);
+                } catch (IOException | DigestException | NoSuchAlgorithmException e) {
+                    throw new InclusionException(e);
+                }
+
+                success(id, description);
+            } catch (InclusionException e) {
+                failed(id, description, e.getMessage(), e.getLonger());
             }
+
+            expireOldestVersion();
         }
     }
 
@@ -139,7 +269,7 @@ public class WorkflowChannel extends AbstractVersionChannel {
         try {
             Path store = store();
 
-            Map<String, Map<String, Triple<String, Path, Path>>> versions = new HashMap<>();
+            Map<String, Map<String, DiskArtifact>> versions = new HashMap<>();
             try (Stream<Path> files = Files.list(store)) {
                 files.forEach(folder -> {
                     String hash = folder.getFileName().toString();
@@ -153,7 +283,7 @@ public class WorkflowChannel extends AbstractVersionChannel {
                                 String fileName = file.getFileName().toString();
                                 if (fileName.endsWith(METADATA_EXTENSION)) {
                                     metaPaths.put(fileName.substring(0, fileName.length() - METADATA_EXTENSION.length()), file);
-                                } else {
+                                } else if (!fileName.endsWith(DELTA_EXTENSION)) {
                                     nonMetaPaths.put(fileName, file);
                                 }
                             });
@@ -166,7 +296,7 @@ public class WorkflowChannel extends AbstractVersionChannel {
                             }
                         }
 
-                        Map<String, Triple<String, Path, Path>> artifacts = new LinkedHashMap<>();
+                        Map<String, DiskArtifact> artifacts = new LinkedHashMap<>();
                         for (Map.Entry<String, Path> entry : nonMetaPaths.entrySet()) {
                             String fileName = entry.getKey();
                             Path file = entry.getValue();
@@ -177,8 +307,11 @@ public class WorkflowChannel extends AbstractVersionChannel {
                                 continue;
                             }
 
-                            WorkflowFileMetadata metadata = Downloader.OBJECT_MAPPER.readValue(Files.newInputStream(metaFile), WorkflowFileMetadata.class);
-                            artifacts.put(metadata.identifier, Triple.of(fileName, file, metaFile));
+                            WorkflowFileMetadata metadata;
+                            try (InputStream inputStream = Files.newInputStream(metaFile)) {
+                                metadata = Downloader.OBJECT_MAPPER.readValue(inputStream, WorkflowFileMetadata.class);
+                            }
+                            artifacts.put(metadata.identifier, new DiskArtifact(fileName, file, metaFile, metadata));
                         }
 
                         if (artifacts.isEmpty()) {
@@ -197,44 +330,30 @@ public class WorkflowChannel extends AbstractVersionChannel {
                 WorkflowRun run = workflowRuns.get(i);
                 String hash = run.head_sha();
 
-                Map<String, Triple<String, Path, Path>> diskVersion = versions.remove(hash);
+                Map<String, DiskArtifact> diskVersion = versions.remove(hash);
+                if (this.versions.containsKey(hash)) {
+                    // Loaded from the snapshot
+                    continue;
+                }
                 if (diskVersion != null) {
                     Map<String, Artifact> artifacts = new HashMap<>();
 
                     for (VersionArtifactConfig artifactConfig : config.artifacts()) {
                         String artifactIdentifier = artifactConfig.identifier();
 
-                        Triple<String, Path, Path> artifact = diskVersion.remove(artifactIdentifier);
+                        DiskArtifact artifact = diskVersion.remove(artifactIdentifier);
                         if (artifact == null) {
                             continue;
                         }
 
-                        String fileName = artifact.getLeft();
-                        Path file = artifact.getMiddle();
-                        Path metaFile = artifact.getRight();
-
-                        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                        byte[] bytes = null;
-                        try (IO io = new IO(Files.newInputStream(file)).withDigest(digest)) {
-                            if (i < config.versionsToKeepInMemory()) {
-                                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                                io.withOutputStream(byteStream).stream();
-
-                                bytes = Files.readAllBytes(file);
-                            } else {
-                                io.stream();
-                            }
-                        }
-
                         artifacts.put(
                                 artifactIdentifier,
                                 new Artifact(
                                         artifactIdentifier,
-                                        fileName,
-                                        file,
-                                        metaFile,
-                                        bytes,
-                                        HexUtils.toHexString(digest.digest())
+                                        artifact.fileName(),
+                                        artifact.file(),
+                                        artifact.metaFile(),
+                                        sha256(artifact.file(), artifact.metaFile(), artifact.metadata(), artifactIdentifier)
                                 )
                         );
                     }
@@ -245,16 +364,19 @@ public class WorkflowChannel extends AbstractVersionChannel {
                 }
 
                 try {
-                    includeRun(run, i < config.versionsToKeepInMemory(), false);
+                    includeRun(run, false);
                 } catch (IOException | InclusionException | DigestException | NoSuchAlgorithmException e) {
                     setLastDiscordMessage(run.head_sha(), "[Refresh] Failed to load workflow for " + hash + " [`" + describe() + "`]", ExceptionUtils.getStackTrace(e));
                 }
             }
 
-            // Remove files that aren't needed (anymore)
-            for (Map<String, Triple<String, Path, Path>> value : versions.values()) {
-                for (Triple<String, Path, Path> triple : value.values()) {
-                    Path file = triple.getMiddle();
+            // Remove files that aren't needed (anymore), expiring versions are deleted when they expire
+            for (Map.Entry<String, Map<String, DiskArtifact>> entry : versions.entrySet()) {
+                if (this.versions.containsKey(entry.getKey())) {
+                    continue;
+                }
+                for (DiskArtifact artifact : entry.getValue().values()) {
+                    Path file = artifact.file();
                     PathUtils.delete(file.getParent());
                 }
             }
@@ -264,7 +386,7 @@ public class WorkflowChannel extends AbstractVersionChannel {
     }
 
     @SuppressWarnings("BusyWait")
-    private void includeRun(WorkflowRun run, boolean inMemory, boolean newVersion)
+    private void includeRun(WorkflowRun run, boolean newVersion)
             throws IOException, InclusionException, DigestException, NoSuchAlgorithmException {
         String hash = run.head_sha();
         Path versionStore = store().resolve(hash);
@@ -371,27 +493,17 @@ public class WorkflowChannel extends AbstractVersionChannel {
                             Files.createDirectories(versionStore);
                         }
 
-                        byte[] bytes = null;
                         MessageDigest digest = MessageDigest.getInstance("SHA-256");
 
                         try (IO io = new IO(inputStream, false)
                                 .withDigest(digest)
                                 .withOutputStream(Files.newOutputStream(file))
                         ) {
-                            if (inMemory) {
-                                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-                                io.withOutputStream(byteStream).stream();
-
-                                bytes = byteStream.toByteArray();
-                            } else {
-                                io.stream();
-                            }
+                            io.stream();
                         }
 
-                        Downloader.OBJECT_MAPPER.writeValue(
-                                Files.newOutputStream(metaFile),
-                                new WorkflowFileMetadata(identifier)
-                        );
+                        String sha256 = HexUtils.toHexString(digest.digest());
+                        writeMetadata(file, metaFile, identifier, sha256);
 
                         artifactsByIdentifier.put(
                                 identifier,
@@ -400,8 +512,7 @@ public class WorkflowChannel extends AbstractVersionChannel {
                                         fileName,
                                         file,
                                         metaFile,
-                                        inMemory ? bytes : null,
-                                        HexUtils.toHexString(digest.digest())
+                                        sha256
                                 )
                         );
 
@@ -425,15 +536,11 @@ public class WorkflowChannel extends AbstractVersionChannel {
     }
 
     @Override
-    public int versionsBehind(String comparedTo, Consumer<String> versionConsumer) {
-        for (int i = 0; i < workflowRuns.size(); i++) {
-            String headSha = workflowRuns.get(i).head_sha();
-            versionConsumer.accept(headSha);
-            if (headSha.equals(comparedTo)) {
-                return i;
-            }
+    protected List<String> identifiersInOrder() {
+        if (workflowRuns == null) {
+            return Collections.emptyList();
         }
-        return -1;
+        return workflowRuns.stream().map(WorkflowRun::head_sha).toList();
     }
 
     @Override
@@ -477,21 +584,41 @@ public class WorkflowChannel extends AbstractVersionChannel {
             return;
         }
 
-        processing(id, description);
-        workflowRuns.add(0, workflowRun);
-
+        ingestLock.lock();
         try {
+            if (versions.containsKey(id)) {
+                // Already picked up by a sync
+                return;
+            }
+
+            processing(id, description);
+            // Copied rather than modified in place, readers may be iterating the current list
+            List<WorkflowRun> runs = new ArrayList<>();
+            runs.add(workflowRun);
+            if (workflowRuns != null) {
+                runs.addAll(workflowRuns);
+            }
+            workflowRuns = runs;
+            versionsChanged();
+
             try {
-                includeRun(workflowRun, config.versionsToKeepInMemory() >= 1, true);
-            } catch (IOException | DigestException | NoSuchAlgorithmException e) {
-                throw new InclusionException(e);
+                try {
+                    includeRun(workflowRun, true);
+                } catch (IOException | DigestException | NoSuchAlgorithmException e) {
+                    throw new InclusionException(e);
+                }
+
+                success(id, description);
+            } catch (InclusionException e) {
+                failed(id, description, e.getMessage(), e.getLonger());
             }
 
-            success(id, description);
-        } catch (InclusionException e) {
-            failed(id, description, e.getMessage(), e.getLonger());
+            expireOldestVersion();
+        } finally {
+            ingestLock.unlock();
         }
-
-        expireOldestVersion();
+        saveSnapshot();
     }
+
+    private record DiskArtifact(String fileName, Path file, Path metaFile, WorkflowFileMetadata metadata) {}
 }
@@ -0,0 +1,25 @@
+package dev.vankka.dsrvdownloader.model.exception;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * A request for a channel that is configured but hasn't finished loading yet.
+ */
+public class ChannelLoadingException extends ResponseStatusException {
+
+    private final long retryAfterSeconds;
+
+    public ChannelLoadingException(long retryAfterSeconds) {
+        super(HttpStatus.SERVICE_UNAVAILABLE, "Channel is still loading");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    @Override
+    public HttpHeaders getResponseHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+        return headers;
+    }
+}
@@ -0,0 +1,900 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import dev.vankka.dsrvdownloader.Downloader;
+import dev.vankka.dsrvdownloader.model.UserAgent;
+import dev.vankka.dsrvdownloader.util.HyperLogLog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stats held in memory as columns: artifacts and versions are dictionary encoded, the rest are primitive arrays
+ * that queries scan and group in blocks. Days past retention are merged into weeks.
+ * <p>
+ * Persisted as a compressed snapshot, writes in between snapshots are appended to a log that is replayed on top of
+ * the snapshot it belongs to. A new snapshot is written once the log gets large or old, when compacting and when closing.
+ */
+public class ColumnarStatsStore implements StatsStore {
+
+    private static final int MAGIC = 0x44535354; // DSST
+    private static final int FORMAT = 1;
+    private static final int BLOCK = 1024;
+    // Groups are summed into an array up to this many possible groups, past that into a map
+    private static final int DENSE_GROUPS = 1 << 20;
+    // Limits of the packed row keys
+    private static final int MAX_ARTIFACTS = 1 << 20;
+    private static final int MAX_VERSIONS = 1 << 24;
+    // When to roll over to a new snapshot, so the log and replaying it stay small
+    private static final long MAX_LOG_SIZE = 16L * 1024 * 1024;
+    private static final long MAX_LOG_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Path file;
+    private final int dailyRetentionDays;
+
+    // Only changed while holding the lock on this, readers use the published columns
+    private final Map<List<String>, Integer> artifactIds = new HashMap<>();
+    private final Map<String, Integer> versionIds = new HashMap<>();
+    // Rows of the most recently written day, to add to instead of appending
+    private final Map<Long, Integer> recentRows = new HashMap<>();
+    private int recentDay = -1;
+    private long generation;
+    private long sequence;
+    private int compactedBefore;
+    private String[][] artifacts = new String[64][];
+    private int artifactCount;
+    private String[] versions = new String[256];
+    private int versionCount;
+    private int[] artifact = new int[BLOCK];
+    private int[] version = new int[BLOCK];
+    private byte[] userAgent = new byte[BLOCK];
+    private int[] date = new int[BLOCK];
+    private long[] count = new long[BLOCK];
+    private int size;
+    private Map<Long, HyperLogLog> uniques = new ConcurrentHashMap<>();
+    private FileChannel log;
+    private long logStarted;
+
+    private volatile Columns columns;
+
+    /**
+     * @param dailyRetentionDays how long to keep daily rows, older days are merged into weeks
+     */
+    public ColumnarStatsStore(Path file, int dailyRetentionDays) throws IOException {
+        this.file = file;
+        this.dailyRetentionDays = dailyRetentionDays;
+
+        synchronized (this) {
+            if (Files.exists(file)) {
+                readSnapshot();
+            }
+
+            // Left behind if closing was interrupted after writing the snapshot
+            Files.deleteIfExists(logFile(generation - 1));
+
+            Path logFile = logFile(generation);
+            boolean replayed = Files.exists(logFile) && replayLog(logFile);
+            publish();
+
+            if (replayed) {
+                // Start the next generation, so the log doesn't need to be replayed again
+                save();
+            } else {
+                this.log = openLog(generation);
+                this.logStarted = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private record Columns(
+            String[][] artifacts,
+            int artifactCount,
+            String[] versions,
+            int versionCount,
+            int[] artifact,
+            int[] version,
+            byte[] userAgent,
+            int[] date,
+            long[] count,
+            int size,
+            Map<Long, HyperLogLog> uniques,
+            int compactedBefore
+    ) {}
+
+    private void publish() {
+        columns = new Columns(
+                artifacts, artifactCount, versions, versionCount,
+                artifact, version, userAgent, date, count, size,
+                uniques, compactedBefore
+        );
+    }
+
+    //
+    // Writing
+    //
+
+    @Override
+    public synchronized void write(List<StatsRow> counts, List<StatsUniques> uniques, long sequence) throws IOException {
+        // In the log before it's visible, if logging fails nothing was written
+        appendLog(counts, uniques, sequence);
+        this.sequence = sequence;
+
+        for (StatsRow row : counts) {
+            add(artifactId(row.key()), versionId(row.key().version()), (byte) row.userAgent().ordinal(),
+                (int) row.date().toEpochDay(), row.count());
+        }
+        for (StatsUniques unique : uniques) {
+            mergeUniques(artifactId(unique.key()), versionId(unique.key().version()),
+                         (int) unique.date().toEpochDay(), unique.sketch());
+        }
+        publish();
+
+        if (log.size() >= MAX_LOG_SIZE || System.currentTimeMillis() - logStarted >= MAX_LOG_AGE_MILLIS) {
+            try {
+                save();
+            } catch (IOException e) {
+                // The write is in the log already, it's replayed from there
+                Downloader.LOGGER.error("Failed to write stats snapshot, continuing with the current log", e);
+            }
+        }
+    }
+
+    /**
+     * If nothing has been written or imported yet.
+     */
+    public synchronized boolean isEmpty() {
+        return size == 0 && sequence == 0;
+    }
+
+    /**
+     * Copies the downloads of another store if this one doesn't have any yet, for switching from that store.
+     * Unique downloaders are not copied.
+     *
+     * @return if anything was copied
+     */
+    public synchronized boolean importFrom(StatsStore source) throws IOException {
+        if (!isEmpty()) {
+            return false;
+        }
+
+        // Rows past retention are weeks in both stores
+        StatsQuery everything = new StatsQuery(Collections.emptyList(), Collections.emptyMap(), LocalDate.EPOCH, LocalDate.now(), 0, false);
+        source.export(everything, row -> add(artifactId(row.key()), versionId(row.key().version()),
+                                             (byte) row.userAgent().ordinal(), (int) row.date().toEpochDay(), row.count()));
+        sequence = source.sequence();
+        if (size == 0) {
+            return false;
+        }
+
+        Downloader.LOGGER.info("Imported " + size + " stats rows");
+        publish();
+        // Only in the snapshot, an interrupted import is started over
+        save();
+        return true;
+    }
+
+    private int artifactId(StatsKey key) throws IOException {
+        List<String> artifactKey = List.of(key.repoOwner(), key.repoName(), key.channel(), key.artifact());
+        Integer id = artifactIds.get(artifactKey);
+        if (id != null) {
+            return id;
+        }
+        if (artifactCount >= MAX_ARTIFACTS) {
+            throw new IOException("Too many artifacts");
+        }
+
+        if (artifactCount == artifacts.length) {
+            artifacts = Arrays.copyOf(artifacts, artifacts.length * 2);
+        }
+        artifacts[artifactCount] = artifactKey.toArray(new String[0]);
+        artifactIds.put(artifactKey, artifactCount);
+        return artifactCount++;
+    }
+
+    private int versionId(String value) throws IOException {
+        Integer id = versionIds.get(value);
+        if (id != null) {
+            return id;
+        }
+        if (versionCount >= MAX_VERSIONS) {
+            throw new IOException("Too many versions");
+        }
+
+        if (versionCount == versions.length) {
+            versions = Arrays.copyOf(versions, versions.length * 2);
+        }
+        versions[versionCount] = value;
+        versionIds.put(value, versionCount);
+        return versionCount++;
+    }
+
+    private static long rowKey(int artifactId, int versionId, byte userAgentOrdinal) {
+        return ((long) artifactId << 32) | ((long) versionId << 3) | userAgentOrdinal;
+    }
+
+    private static long uniquesKey(int artifactId, int versionId, int day) {
+        return ((long) artifactId << 44) | ((long) versionId << 20) | (day & 0xFFFFF);
+    }
+
+    private void add(int artifactId, int versionId, byte userAgentOrdinal, int day, long amount) {
+        if (day > recentDay) {
+            recentRows.clear();
+            recentDay = day;
+        }
+
+        long key = rowKey(artifactId, versionId, userAgentOrdinal);
+        if (day == recentDay) {
+            Integer index = recentRows.get(key);
+            if (index != null) {
+                count[index] += amount;
+                return;
+            }
+        }
+
+        if (size == count.length) {
+            // New arrays, readers keep using the ones they have
+            int capacity = count.length * 2;
+            artifact = Arrays.copyOf(artifact, capacity);
+            version = Arrays.copyOf(version, capacity);
+            userAgent = Arrays.copyOf(userAgent, capacity);
+            date = Arrays.copyOf(date, capacity);
+            count = Arrays.copyOf(count, capacity);
+        }
+
+        artifact[size] = artifactId;
+        version[size] = versionId;
+        userAgent[size] = userAgentOrdinal;
+        date[size] = day;
+        count[size] = amount;
+        if (day == recentDay) {
+            recentRows.put(key, size);
+        }
+        size++;
+    }
+
+    private void mergeUniques(int artifactId, int versionId, int day, HyperLogLog sketch) {
+        uniques.computeIfAbsent(uniquesKey(artifactId, versionId, day), key -> new HyperLogLog()).merge(sketch);
+    }
+
+    @Override
+    public synchronized long sequence() {
+        return sequence;
+    }
+
+    @Override
+    public synchronized void compact() throws IOException {
+        int cutoff = (int) StatsPeriod.WEEK.start(LocalDate.now().minusDays(dailyRetentionDays)).toEpochDay();
+        if (cutoff <= compactedBefore) {
+            return;
+        }
+
+        // Rebuilt into new arrays, readers keep using the ones they have
+        int[] oldArtifact = artifact;
+        int[] oldVersion = version;
+        byte[] oldUserAgent = userAgent;
+        int[] oldDate = date;
+        long[] oldCount = count;
+        int oldSize = size;
+        artifact = new int[Math.max(oldSize, BLOCK)];
+        version = new int[artifact.length];
+        userAgent = new byte[artifact.length];
+        date = new int[artifact.length];
+        count = new long[artifact.length];
+        size = 0;
+
+        Map<List<Long>, Integer> weekRows = new HashMap<>();
+        for (int i = 0; i < oldSize; i++) {
+            int day = oldDate[i];
+            if (day < cutoff) {
+                day = weekStart(day);
+                List<Long> key = List.of(rowKey(oldArtifact[i], oldVersion[i], oldUserAgent[i]), (long) day);
+                Integer index = weekRows.get(key);
+                if (index != null) {
+                    count[index] += oldCount[i];
+                    continue;
+                }
+                weekRows.put(key, size);
+            }
+
+            artifact[size] = oldArtifact[i];
+            version[size] = oldVersion[i];
+            userAgent[size] = oldUserAgent[i];
+            date[size] = day;
+            count[size] = oldCount[i];
+            size++;
+        }
+
+        Map<Long, HyperLogLog> compactedUniques = new ConcurrentHashMap<>();
+        for (Map.Entry<Long, HyperLogLog> entry : uniques.entrySet()) {
+            long key = entry.getKey();
+            int day = (int) (key & 0xFFFFF);
+            if (day < cutoff) {
+                key = (key & ~0xFFFFFL) | weekStart(day);
+            }
+            compactedUniques.computeIfAbsent(key, k -> new HyperLogLog()).merge(entry.getValue());
+        }
+        uniques = compactedUniques;
+
+        recentRows.clear();
+        for (int i = 0; i < size; i++) {
+            if (date[i] == recentDay) {
+                recentRows.put(rowKey(artifact[i], version[i], userAgent[i]), i);
+            }
+        }
+
+        Downloader.LOGGER.info("Compacted " + (oldSize - size) + " daily stats rows into weeks");
+        compactedBefore = cutoff;
+        publish();
+        save();
+    }
+
+    private static int weekStart(int day) {
+        return (int) StatsPeriod.WEEK.start(LocalDate.ofEpochDay(day)).toEpochDay();
+    }
+
+    //
+    // Reading
+    //
+
+    @Override
+    public void totals(RowConsumer consumer) throws IOException {
+        Columns columns = this.columns;
+        Map<Long, Long> totals = new HashMap<>();
+        for (int i = 0; i < columns.size(); i++) {
+            totals.merge(rowKey(columns.artifact()[i], columns.version()[i], columns.userAgent()[i]), columns.count()[i], Long::sum);
+        }
+
+        UserAgent[] userAgents = UserAgent.values();
+        for (Map.Entry<Long, Long> entry : totals.entrySet()) {
+            long key = entry.getKey();
+            StatsKey statsKey = key(columns, (int) (key >>> 32), (int) ((key >>> 3) & (MAX_VERSIONS - 1)));
+            consumer.accept(new StatsRow(statsKey, userAgents[(int) (key & 7)], null, null, entry.getValue()));
+        }
+    }
+
+    private StatsKey key(Columns columns, int artifactId, int versionId) {
+        String[] artifactKey = columns.artifacts()[artifactId];
+        return new StatsKey(artifactKey[0], artifactKey[1], artifactKey[2], artifactKey[3], columns.versions()[versionId]);
+    }
+
+    /**
+     * The rows that pass the query's filters, by dictionary id.
+     */
+    private record Filter(boolean[] artifacts, boolean[] versions, boolean[] userAgents, int from, int to) {
+
+        static Filter of(Columns columns, StatsQuery query) {
+            Map<String, Set<String>> filters = query.filters();
+            for (String column : filters.keySet()) {
+                if (!StatsQuery.COLUMNS.contains(column) || column.equals("date")) {
+                    throw new IllegalArgumentException("Cannot filter by " + column);
+                }
+            }
+
+            boolean[] artifacts = new boolean[columns.artifactCount()];
+            for (int i = 0; i < artifacts.length; i++) {
+                artifacts[i] = true;
+                for (int part = 0; part < 4; part++) {
+                    Set<String> allowed = filters.get(StatsQuery.COLUMNS.get(part));
+                    if (allowed != null && !allowed.contains(columns.artifacts()[i][part])) {
+                        artifacts[i] = false;
+                    }
+                }
+            }
+
+            Set<String> allowedVersions = filters.get("version");
+            boolean[] versions = new boolean[columns.versionCount()];
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = allowedVersions == null || allowedVersions.contains(columns.versions()[i]);
+            }
+
+            Set<String> allowedUserAgents = filters.get("useragent");
+            boolean[] userAgents = new boolean[UserAgent.values().length];
+            for (UserAgent userAgent : UserAgent.values()) {
+                userAgents[userAgent.ordinal()] = allowedUserAgents == null || allowedUserAgents.contains(userAgent.name());
+            }
+
+            return new Filter(artifacts, versions, userAgents, (int) query.from().toEpochDay(), (int) query.to().toEpochDay());
+        }
+
+        boolean test(Columns columns, int row) {
+            int day = columns.date()[row];
+            return day >= from && day <= to
+                    && artifacts[columns.artifact()[row]]
+                    && versions[columns.version()[row]]
+                    && userAgents[columns.userAgent()[row]];
+        }
+    }
+
+    /**
+     * A group by column, values of the source column are mapped to a dense group value id.
+     *
+     * @param mapping group value id by artifact id, for the artifact parts
+     * @param labels the group values by id, {@code null} for dates (which are counted from the start of the range)
+     */
+    private record Dimension(String column, int cardinality, int[] mapping, List<String> labels) {
+
+        static Dimension of(Columns columns, String column, Filter filter) {
+            int part = StatsQuery.COLUMNS.indexOf(column);
+            if (part == -1) {
+                throw new IllegalArgumentException("Cannot group by " + column);
+            }
+
+            if (part < 4) {
+                Map<String, Integer> ids = new LinkedHashMap<>();
+                int[] mapping = new int[columns.artifactCount()];
+                for (int i = 0; i < mapping.length; i++) {
+                    mapping[i] = ids.computeIfAbsent(columns.artifacts()[i][part], key -> ids.size());
+                }
+                return new Dimension(column, ids.size(), mapping, new ArrayList<>(ids.keySet()));
+            }
+
+            return switch (column) {
+                case "version" -> new Dimension(column, columns.versionCount(), null,
+                                                Arrays.asList(columns.versions()).subList(0, columns.versionCount()));
+                case "useragent" -> new Dimension(column, UserAgent.values().length, null,
+                                                  Arrays.stream(UserAgent.values()).map(Enum::name).toList());
+                default -> new Dimension(column, filter.to() - filter.from() + 1, null, null);
+            };
+        }
+
+        /**
+         * Appends this dimension's value of each selected row to the group ids (as a mixed radix number).
+         */
+        void apply(Columns columns, Filter filter, int[] selection, int selected, long[] groupIds) {
+            switch (column) {
+                case "version" -> {
+                    int[] source = columns.version();
+                    for (int j = 0; j < selected; j++) {
+                        groupIds[j] = groupIds[j] * cardinality + source[selection[j]];
+                    }
+                }
+                case "useragent" -> {
+                    byte[] source = columns.userAgent();
+                    for (int j = 0; j < selected; j++) {
+                        groupIds[j] = groupIds[j] * cardinality + source[selection[j]];
+                    }
+                }
+                case "date" -> {
+                    int[] source = columns.date();
+                    for (int j = 0; j < selected; j++) {
+                        groupIds[j] = groupIds[j] * cardinality + (source[selection[j]] - filter.from());
+                    }
+                }
+                default -> {
+                    int[] source = columns.artifact();
+                    for (int j = 0; j < selected; j++) {
+                        groupIds[j] = groupIds[j] * cardinality + mapping[source[selection[j]]];
+                    }
+                }
+            }
+        }
+
+        long groupId(int artifactId, int versionId, int day, Filter filter) {
+            return switch (column) {
+                case "version" -> versionId;
+                case "date" -> day - filter.from();
+                default -> mapping[artifactId];
+            };
+        }
+
+        String label(int id, Filter filter) {
+            return labels != null ? labels.get(id) : LocalDate.ofEpochDay(filter.from() + id).toString();
+        }
+    }
+
+    @Override
+    public List<StatsGroup> query(StatsQuery query) {
+        Columns columns = this.columns;
+        Filter filter = Filter.of(columns, query);
+        List<Dimension> dimensions = new ArrayList<>();
+        long possibleGroups = 1;
+        for (String group : query.groups()) {
+            Dimension dimension = Dimension.of(columns, group, filter);
+            dimensions.add(dimension);
+            possibleGroups = Math.multiplyHigh(possibleGroups, dimension.cardinality()) != 0
+                             ? Long.MAX_VALUE
+                             : possibleGroups * Math.max(dimension.cardinality(), 1);
+        }
+
+        boolean dense = possibleGroups <= DENSE_GROUPS;
+        long[] denseSums = dense ? new long[(int) possibleGroups] : null;
+        boolean[] denseSeen = dense ? new boolean[(int) possibleGroups] : null;
+        Map<Long, Long> sparseSums = dense ? null : new HashMap<>();
+
+        // Filter a block of rows into a selection, then work out the group of each selected row one column at a time
+        int[] selection = new int[BLOCK];
+        long[] groupIds = new long[BLOCK];
+        long[] counts = columns.count();
+        for (int start = 0; start < columns.size(); start += BLOCK) {
+            int end = Math.min(start + BLOCK, columns.size());
+            int selected = 0;
+            for (int row = start; row < end; row++) {
+                if (filter.test(columns, row)) {
+                    selection[selected++] = row;
+                }
+            }
+
+            Arrays.fill(groupIds, 0, selected, 0);
+            for (Dimension dimension : dimensions) {
+                dimension.apply(columns, filter, selection, selected, groupIds);
+            }
+
+            if (dense) {
+                for (int j = 0; j < selected; j++) {
+                    denseSums[(int) groupIds[j]] += counts[selection[j]];
+                    denseSeen[(int) groupIds[j]] = true;
+                }
+            } else {
+                for (int j = 0; j < selected; j++) {
+                    sparseSums.merge(groupIds[j], counts[selection[j]], Long::sum);
+                }
+            }
+        }
+
+        Map<Long, HyperLogLog> uniques = query.unique() ? uniques(columns, filter, dimensions) : null;
+
+        List<StatsGroup> results = new ArrayList<>();
+        if (dimensions.isEmpty()) {
+            HyperLogLog sketch = uniques != null ? uniques.get(0L) : null;
+            results.add(new StatsGroup(new ArrayList<>(), denseSums[0], unique(uniques, sketch)));
+            return results;
+        }
+
+        if (dense) {
+            for (int groupId = 0; groupId < denseSums.length && results.size() < query.limit(); groupId++) {
+                if (denseSeen[groupId]) {
+                    results.add(group(dimensions, filter, groupId, denseSums[groupId], uniques));
+                }
+            }
+        } else {
+            for (Map.Entry<Long, Long> entry : sparseSums.entrySet()) {
+                if (results.size() >= query.limit()) {
+                    break;
+                }
+                results.add(group(dimensions, filter, entry.getKey(), entry.getValue(), uniques));
+            }
+        }
+        return results;
+    }
+
+    private StatsGroup group(List<Dimension> dimensions, Filter filter, long groupId, long sum, Map<Long, HyperLogLog> uniques) {
+        String[] values = new String[dimensions.size()];
+        long remaining = groupId;
+        for (int i = dimensions.size() - 1; i >= 0; i--) {
+            Dimension dimension = dimensions.get(i);
+            values[i] = dimension.label((int) (remaining % dimension.cardinality()), filter);
+            remaining /= dimension.cardinality();
+        }
+        return new StatsGroup(new ArrayList<>(Arrays.asList(values)), sum, unique(uniques, uniques != null ? uniques.get(groupId) : null));
+    }
+
+    private static long unique(Map<Long, HyperLogLog> uniques, HyperLogLog sketch) {
+        return uniques == null ? -1 : sketch != null ? sketch.estimate() : 0;
+    }
+
+    /**
+     * The unique downloader sketches passing the filter, merged by group id.
+     */
+    private Map<Long, HyperLogLog> uniques(Columns columns, Filter filter, List<Dimension> dimensions) {
+        if (dimensions.stream().anyMatch(dimension -> dimension.column().equals("useragent"))) {
+            throw new IllegalArgumentException("Unique downloaders are not tracked by user agent");
+        }
+
+        Map<Long, HyperLogLog> merged = new HashMap<>();
+        for (Map.Entry<Long, HyperLogLog> entry : columns.uniques().entrySet()) {
+            long key = entry.getKey();
+            int artifactId = (int) (key >>> 44);
+            int versionId = (int) ((key >>> 20) & (MAX_VERSIONS - 1));
+            int day = (int) (key & 0xFFFFF);
+            if (day < filter.from() || day > filter.to() || !filter.artifacts()[artifactId] || !filter.versions()[versionId]) {
+                continue;
+            }
+
+            long groupId = 0;
+            for (Dimension dimension : dimensions) {
+                groupId = groupId * dimension.cardinality() + dimension.groupId(artifactId, versionId, day, filter);
+            }
+            merged.computeIfAbsent(groupId, id -> new HyperLogLog()).merge(entry.getValue());
+        }
+        return merged;
+    }
+
+    @Override
+    public void export(StatsQuery query, RowConsumer consumer) throws IOException {
+        Columns columns = this.columns;
+        Filter filter = Filter.of(columns, query);
+        UserAgent[] userAgents = UserAgent.values();
+        for (int row = 0; row < columns.size(); row++) {
+            if (!filter.test(columns, row)) {
+                continue;
+            }
+
+            int day = columns.date()[row];
+            consumer.accept(new StatsRow(
+                    key(columns, columns.artifact()[row], columns.version()[row]),
+                    userAgents[columns.userAgent()[row]],
+                    day < columns.compactedBefore() ? StatsPeriod.WEEK : StatsPeriod.DAY,
+                    LocalDate.ofEpochDay(day),
+                    columns.count()[row]
+            ));
+        }
+    }
+
+    //
+    // Persistence
+    //
+
+    private Path logFile(long generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation + ".log");
+    }
+
+    private FileChannel openLog(long generation) throws IOException {
+        return FileChannel.open(logFile(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static UserAgent userAgent(byte sql) {
+        for (UserAgent value : UserAgent.values()) {
+            if (value.sql() == sql) {
+                return value;
+            }
+        }
+        return UserAgent.UNKNOWN;
+    }
+
+    private static void writeKey(DataOutputStream outputStream, StatsKey key) throws IOException {
+        outputStream.writeUTF(key.repoOwner());
+        outputStream.writeUTF(key.repoName());
+        outputStream.writeUTF(key.channel());
+        outputStream.writeUTF(key.artifact());
+        outputStream.writeUTF(key.version());
+    }
+
+    private static StatsKey readKey(DataInputStream inputStream) throws IOException {
+        return new StatsKey(inputStream.readUTF(), inputStream.readUTF(), inputStream.readUTF(), inputStream.readUTF(), inputStream.readUTF());
+    }
+
+    /**
+     * Each write is one entry: length, the sequence, rows and sketches, CRC32. An incomplete entry at the end is from a crash during the write.
+     */
+    private void appendLog(List<StatsRow> counts, List<StatsUniques> uniques, long sequence) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream outputStream = new DataOutputStream(byteStream)) {
+            outputStream.writeLong(sequence);
+            outputStream.writeInt(counts.size());
+            for (StatsRow row : counts) {
+                writeKey(outputStream, row.key());
+                outputStream.writeByte(row.userAgent().sql());
+                outputStream.writeInt((int) row.date().toEpochDay());
+                outputStream.writeLong(row.count());
+            }
+            outputStream.writeInt(uniques.size());
+            for (StatsUniques unique : uniques) {
+                writeKey(outputStream, unique.key());
+                outputStream.writeInt((int) unique.date().toEpochDay());
+                outputStream.write(unique.sketch().toByteArray());
+            }
+        }
+        byte[] entry = byteStream.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(entry);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + entry.length + Long.BYTES);
+        buffer.putInt(entry.length).put(entry).putLong(crc.getValue()).flip();
+
+        long position = log.size();
+        try {
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            // Don't leave a partial entry in front of the next one
+            log.truncate(position);
+            throw e;
+        }
+    }
+
+    /**
+     * @return if there was anything to replay
+     */
+    private boolean replayLog(Path logFile) throws IOException {
+        int entries = 0;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            while (true) {
+                byte[] entry;
+                long expectedCrc;
+                try {
+                    entry = new byte[inputStream.readInt()];
+                    inputStream.readFully(entry);
+                    expectedCrc = inputStream.readLong();
+                } catch (EOFException ignored) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(entry);
+                if (crc.getValue() != expectedCrc) {
+                    break;
+                }
+
+                DataInputStream entryStream = new DataInputStream(new ByteArrayInputStream(entry));
+                sequence = entryStream.readLong();
+                int counts = entryStream.readInt();
+                for (int i = 0; i < counts; i++) {
+                    StatsKey key = readKey(entryStream);
+                    UserAgent userAgent = userAgent(entryStream.readByte());
+                    add(artifactId(key), versionId(key.version()), (byte) userAgent.ordinal(), entryStream.readInt(), entryStream.readLong());
+                }
+                int sketches = entryStream.readInt();
+                for (int i = 0; i < sketches; i++) {
+                    StatsKey key = readKey(entryStream);
+                    int day = entryStream.readInt();
+                    byte[] registers = new byte[HyperLogLog.REGISTERS];
+                    entryStream.readFully(registers);
+                    mergeUniques(artifactId(key), versionId(key.version()), day, new HyperLogLog(registers));
+                }
+                entries++;
+            }
+        }
+
+        if (entries > 0) {
+            Downloader.LOGGER.info("Replayed " + entries + " stats writes from " + logFile.getFileName());
+        }
+        return entries > 0;
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != FORMAT) {
+                throw new IOException("Not a stats snapshot: " + file);
+            }
+            generation = inputStream.readLong();
+            sequence = inputStream.readLong();
+            compactedBefore = inputStream.readInt();
+
+            int artifacts = inputStream.readInt();
+            for (int i = 0; i < artifacts; i++) {
+                // In the order of their ids
+                artifactId(new StatsKey(inputStream.readUTF(), inputStream.readUTF(), inputStream.readUTF(), inputStream.readUTF(), null));
+            }
+            int versions = inputStream.readInt();
+            for (int i = 0; i < versions; i++) {
+                versionId(inputStream.readUTF());
+            }
+
+            int rows = inputStream.readInt();
+            int capacity = Math.max(Integer.highestOneBit(Math.max(rows, 1)) * 2, BLOCK);
+            artifact = new int[capacity];
+            version = new int[capacity];
+            userAgent = new byte[capacity];
+            date = new int[capacity];
+            count = new long[capacity];
+            for (int i = 0; i < rows; i++) {
+                artifact[i] = inputStream.readInt();
+            }
+            for (int i = 0; i < rows; i++) {
+                version[i] = inputStream.readInt();
+            }
+            for (int i = 0; i < rows; i++) {
+                userAgent[i] = (byte) userAgent(inputStream.readByte()).ordinal();
+            }
+            for (int i = 0; i < rows; i++) {
+                date[i] = inputStream.readInt();
+            }
+            for (int i = 0; i < rows; i++) {
+                count[i] = inputStream.readLong();
+            }
+            size = rows;
+
+            int sketches = inputStream.readInt();
+            for (int i = 0; i < sketches; i++) {
+                long key = inputStream.readLong();
+                byte[] registers = new byte[HyperLogLog.REGISTERS];
+                inputStream.readFully(registers);
+                uniques.put(key, new HyperLogLog(registers));
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot for the next generation and switches to its log, the previous log is then no longer needed.
+     */
+    private void save() throws IOException {
+        long nextGeneration = generation + 1;
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(logFile(nextGeneration));
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temporaryFile))))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(FORMAT);
+            outputStream.writeLong(nextGeneration);
+            outputStream.writeLong(sequence);
+            outputStream.writeInt(compactedBefore);
+
+            outputStream.writeInt(artifactCount);
+            for (int i = 0; i < artifactCount; i++) {
+                for (String part : artifacts[i]) {
+                    outputStream.writeUTF(part);
+                }
+            }
+            outputStream.writeInt(versionCount);
+            for (int i = 0; i < versionCount; i++) {
+                outputStream.writeUTF(versions[i]);
+            }
+
+            // Column by column, which compresses far better than row by row
+            outputStream.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                outputStream.writeInt(artifact[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                outputStream.writeInt(version[i]);
+            }
+            UserAgent[] userAgents = UserAgent.values();
+            for (int i = 0; i < size; i++) {
+                outputStream.writeByte(userAgents[userAgent[i]].sql());
+            }
+            for (int i = 0; i < size; i++) {
+                outputStream.writeInt(date[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                outputStream.writeLong(count[i]);
+            }
+
+            outputStream.writeInt(uniques.size());
+            for (Map.Entry<Long, HyperLogLog> entry : uniques.entrySet()) {
+                outputStream.writeLong(entry.getKey());
+                outputStream.write(entry.getValue().toByteArray());
+            }
+        }
+        // The snapshot has to be on the device before the log it replaces is deleted
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+
+        FileChannel nextLog = openLog(nextGeneration);
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            nextLog.close();
+            throw e;
+        }
+        forceDirectory();
+
+        FileChannel previousLog = log;
+        long previousGeneration = generation;
+        generation = nextGeneration;
+        log = nextLog;
+        logStarted = System.currentTimeMillis();
+        if (previousLog != null) {
+            previousLog.close();
+        }
+        Files.deleteIfExists(logFile(previousGeneration));
+    }
+
+    /**
+     * Writes the snapshot's new name to the storage device, not every platform can open a directory for this.
+     */
+    private void forceDirectory() {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        save();
+        log.close();
+    }
+}
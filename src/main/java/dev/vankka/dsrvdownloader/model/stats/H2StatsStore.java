@@ -0,0 +1,668 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import dev.vankka.dsrvdownloader.Downloader;
+import dev.vankka.dsrvdownloader.model.UserAgent;
+import dev.vankka.dsrvdownloader.util.HyperLogLog;
+import org.apache.commons.lang3.tuple.Pair;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Stats in an H2 database. Weekly and monthly rollups are kept up to date as downloads are written,
+ * queries read the coarsest periods that fit in their range.
+ */
+@SuppressWarnings("SpellCheckingInspection")
+public class H2StatsStore implements StatsStore {
+
+    private static final StatsPeriod[] ROLLUPS = {StatsPeriod.WEEK, StatsPeriod.MONTH};
+    private static final List<String> KEY_COLUMNS = List.of("repoowner", "reponame", "channel", "artifact", "version");
+
+    private final JdbcConnectionPool pool;
+    // Exports hold their connection for as long as the client takes to download, so they can't use up the pool flushes use
+    private final JdbcConnectionPool exportPool;
+    private final int dailyRetentionDays;
+    // Only used while writing
+    private final Map<List<String>, Long> artifactIds = new HashMap<>();
+
+    /**
+     * @param dailyRetentionDays how long to keep daily rows, older days are only kept in the rollups
+     */
+    public H2StatsStore(String url, int dailyRetentionDays) throws IOException {
+        this.dailyRetentionDays = dailyRetentionDays;
+        // Queries get their own connections, so they don't wait for writes (or the other way around)
+        this.pool = JdbcConnectionPool.create(url, "", "");
+        pool.setMaxConnections(4);
+        this.exportPool = JdbcConnectionPool.create(url, "", "");
+        exportPool.setMaxConnections(2);
+
+        try (Connection connection = pool.getConnection()) {
+            migrate(connection);
+        } catch (SQLException e) {
+            exportPool.dispose();
+            pool.dispose();
+            throw new IOException("Failed to open stats database", e);
+        }
+    }
+
+
+    @Override
+    public synchronized void write(List<StatsRow> counts, List<StatsUniques> uniques, long sequence) throws IOException {
+        // Only cached once committed
+        Map<List<String>, Long> newArtifactIds = new HashMap<>();
+        try (Connection connection = pool.getConnection()) {
+            // Each write is committed as one transaction
+            connection.setAutoCommit(false);
+            try {
+                // The rollups are kept up to date along with the daily rows
+                List<PreparedStatement> merges = new ArrayList<>();
+                try {
+                    for (StatsPeriod period : StatsPeriod.values()) {
+                        merges.add(connection.prepareStatement(mergeSql(period)));
+                    }
+
+                    for (StatsRow row : counts) {
+                        long artifactId = artifactId(connection, row.key(), newArtifactIds);
+                        for (StatsPeriod period : StatsPeriod.values()) {
+                            PreparedStatement merge = merges.get(period.ordinal());
+                            merge.setLong(1, artifactId);
+                            merge.setString(2, row.key().version());
+                            merge.setByte(3, row.userAgent().sql());
+                            merge.setDate(4, Date.valueOf(period.start(row.date())));
+                            merge.setInt(5, (int) row.count());
+                            merge.addBatch();
+                        }
+                    }
+                    for (PreparedStatement merge : merges) {
+                        merge.executeBatch();
+                    }
+                } finally {
+                    for (PreparedStatement merge : merges) {
+                        merge.close();
+                    }
+                }
+
+                for (StatsUniques unique : uniques) {
+                    long artifactId = artifactId(connection, unique.key(), newArtifactIds);
+                    for (StatsPeriod period : StatsPeriod.values()) {
+                        mergeUniques(connection, period, artifactId, unique.key().version(), period.start(unique.date()), unique.sketch());
+                    }
+                }
+
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "merge into flushsequence (id, sequence) key (id) values (0, ?)")) {
+                    statement.setLong(1, sequence);
+                    statement.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to write stats", e);
+        }
+
+        artifactIds.putAll(newArtifactIds);
+    }
+
+    private void migrate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table if not exists artifact ("
+                                      + "artifactid bigint auto_increment,"
+                                      + "repoowner varchar(256),"
+                                      + "reponame varchar(256),"
+                                      + "channel varchar(256),"
+                                      + "artifact varchar(256),"
+                                      + "primary key (artifactid)"
+                                      + ");");
+            statement.execute("create table if not exists stats ("
+                                      + "statsid bigint auto_increment,"
+                                      + "artifactid bigint,"
+                                      + "version varchar(256),"
+                                      + "useragent tinyint default -1,"
+                                      + "date date,"
+                                      + "count int,"
+                                      + "primary key (statsid),"
+                                      + "foreign key (artifactid) references artifact(artifactid)"
+                                      + ");");
+            statement.execute("alter table stats add column if not exists useragent tinyint default -1");
+        }
+
+        boolean fixedWidth;
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select data_type from information_schema.columns "
+                             + "where table_schema = 'PUBLIC' and table_name = 'STATS' and column_name = 'VERSION'")) {
+            fixedWidth = resultSet.next() && resultSet.getString(1).equals("CHARACTER");
+        }
+        if (fixedWidth) {
+            Downloader.LOGGER.info("Migrating stats database to varchar columns");
+            try (Statement statement = connection.createStatement()) {
+                for (String column : Arrays.asList("repoowner", "reponame", "channel", "artifact")) {
+                    statement.execute("alter table artifact alter column " + column + " set data type varchar(256)");
+                    statement.execute("update artifact set " + column + " = trim(trailing from " + column + ")");
+                }
+                statement.execute("alter table stats alter column version set data type varchar(256)");
+                statement.execute("update stats set version = trim(trailing from version)");
+            }
+        }
+
+        boolean indexed;
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select 1 from information_schema.indexes "
+                             + "where table_schema = 'PUBLIC' and index_name = 'STATS_KEY'")) {
+            indexed = resultSet.next();
+        }
+        if (!indexed) {
+            Downloader.LOGGER.info("Indexing stats database");
+            try (Statement statement = connection.createStatement()) {
+                // Combine rows for the same day into one before the key becomes unique
+                statement.execute("update stats set count = ("
+                                          + "select sum(duplicate.count) from stats duplicate "
+                                          + "where duplicate.artifactid = stats.artifactid "
+                                          + "and duplicate.version = stats.version "
+                                          + "and duplicate.useragent = stats.useragent "
+                                          + "and duplicate.date = stats.date"
+                                          + ") where statsid in ("
+                                          + "select min(statsid) from stats "
+                                          + "group by artifactid, version, useragent, date having count(*) > 1"
+                                          + ")");
+                statement.execute("delete from stats where statsid not in ("
+                                          + "select min(statsid) from stats group by artifactid, version, useragent, date"
+                                          + ")");
+                statement.execute("create unique index stats_key on stats(artifactid, version, useragent, date)");
+            }
+        }
+
+        for (StatsPeriod period : ROLLUPS) {
+            boolean exists;
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "select 1 from information_schema.tables where table_schema = 'PUBLIC' and table_name = ?")) {
+                statement.setString(1, period.table().toUpperCase(Locale.ROOT));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    exists = resultSet.next();
+                }
+            }
+            if (exists) {
+                continue;
+            }
+
+            Downloader.LOGGER.info("Creating " + period.table() + " from existing stats");
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create table " + period.table() + " ("
+                                          + "artifactid bigint,"
+                                          + "version varchar(256),"
+                                          + "useragent tinyint,"
+                                          + "date date,"
+                                          + "count int,"
+                                          + "primary key (artifactid, version, useragent, date),"
+                                          + "foreign key (artifactid) references artifact(artifactid)"
+                                          + ");");
+                statement.execute("insert into " + period.table() + " (artifactid, version, useragent, date, count) "
+                                          + "select artifactid, version, useragent, " + period.startSql() + ", sum(count) from stats "
+                                          + "group by artifactid, version, useragent, " + period.startSql());
+            }
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            // Unique downloaders, there's nothing to build these from for the past
+            for (StatsPeriod period : StatsPeriod.values()) {
+                statement.execute("create table if not exists " + period.uniquesTable() + " ("
+                                          + "artifactid bigint,"
+                                          + "version varchar(256),"
+                                          + "date date,"
+                                          + "registers varbinary(" + HyperLogLog.REGISTERS + "),"
+                                          + "primary key (artifactid, version, date),"
+                                          + "foreign key (artifactid) references artifact(artifactid)"
+                                          + ");");
+                statement.execute("create index if not exists " + period.uniquesTable() + "_date on " + period.uniquesTable() + "(date, artifactid)");
+            }
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            // The last flush that was written, in the same transaction as its downloads
+            statement.execute("create table if not exists flushsequence ("
+                                      + "id tinyint,"
+                                      + "sequence bigint,"
+                                      + "primary key (id)"
+                                      + ");");
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            // For date range queries across all artifacts
+            statement.execute("create index if not exists stats_date on stats(date, artifactid)");
+            statement.execute("create index if not exists artifact_key on artifact(repoowner, reponame, channel, artifact)");
+            for (StatsPeriod period : ROLLUPS) {
+                statement.execute("create index if not exists " + period.table() + "_date on " + period.table() + "(date, artifactid)");
+            }
+        }
+    }
+
+    private long artifactId(Connection connection, StatsKey statsKey, Map<List<String>, Long> newArtifactIds) throws SQLException {
+        List<String> key = List.of(statsKey.repoOwner(), statsKey.repoName(), statsKey.channel(), statsKey.artifact());
+        Long artifactId = artifactIds.get(key);
+        if (artifactId == null) {
+            artifactId = newArtifactIds.get(key);
+        }
+        if (artifactId != null) {
+            return artifactId;
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select artifactid from artifact "
+                        + "where repoowner = ? "
+                        + "and reponame = ? "
+                        + "and channel = ? "
+                        + "and artifact = ?")) {
+            for (int i = 0; i < key.size(); i++) {
+                statement.setString(i + 1, key.get(i));
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    artifactId = resultSet.getLong("artifactid");
+                }
+            }
+        }
+
+        if (artifactId == null) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "insert into artifact (repoowner, reponame, channel, artifact) values (?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                for (int i = 0; i < key.size(); i++) {
+                    statement.setString(i + 1, key.get(i));
+                }
+                statement.executeUpdate();
+
+                try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                    if (!resultSet.next()) {
+                        throw new SQLException("No artifactid generated");
+                    }
+                    artifactId = resultSet.getLong(1);
+                }
+            }
+        }
+
+        newArtifactIds.put(key, artifactId);
+        return artifactId;
+    }
+
+    private static String mergeSql(StatsPeriod period) {
+        String table = period.table();
+        return "merge into " + table + " using (values (?, ?, ?, ?, ?)) as flushed(artifactid, version, useragent, date, count) "
+                + "on " + table + ".artifactid = flushed.artifactid "
+                + "and " + table + ".version = flushed.version "
+                + "and " + table + ".useragent = flushed.useragent "
+                + "and " + table + ".date = flushed.date "
+                + "when matched then update set count = " + table + ".count + flushed.count "
+                + "when not matched then insert (artifactid, version, useragent, date, count) "
+                + "values (flushed.artifactid, flushed.version, flushed.useragent, flushed.date, flushed.count)";
+    }
+
+    private void mergeUniques(
+            Connection connection,
+            StatsPeriod period,
+            long artifactId,
+            String version,
+            LocalDate date,
+            HyperLogLog sketch
+    ) throws SQLException {
+        String table = period.uniquesTable();
+        HyperLogLog merged = new HyperLogLog();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select registers from " + table + " where artifactid = ? and version = ? and date = ?")) {
+            statement.setLong(1, artifactId);
+            statement.setString(2, version);
+            statement.setDate(3, Date.valueOf(date));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    merged = new HyperLogLog(resultSet.getBytes("registers"));
+                }
+            }
+        }
+        merged.merge(sketch);
+
+        try (PreparedStatement statement = connection.prepareStatement(
+                "merge into " + table + " (artifactid, version, date, registers) key (artifactid, version, date) values (?, ?, ?, ?)")) {
+            statement.setLong(1, artifactId);
+            statement.setString(2, version);
+            statement.setDate(3, Date.valueOf(date));
+            statement.setBytes(4, merged.toByteArray());
+            statement.executeUpdate();
+        }
+    }
+
+    @Override
+    public long sequence() throws IOException {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select sequence from flushsequence where id = 0")) {
+            return resultSet.next() ? resultSet.getLong("sequence") : 0;
+        } catch (SQLException e) {
+            throw new IOException("Failed to read the flush sequence", e);
+        }
+    }
+
+    @Override
+    public void totals(RowConsumer consumer) throws IOException {
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "select repoowner, reponame, channel, artifact, version, useragent, sum(count) as sum "
+                             + "from stats_monthly inner join artifact on artifact.artifactid = stats_monthly.artifactid "
+                             + "group by repoowner, reponame, channel, artifact, version, useragent")) {
+            while (resultSet.next()) {
+                UserAgent userAgent;
+                try {
+                    userAgent = UserAgent.getBySql(resultSet.getString("useragent"));
+                } catch (IllegalArgumentException ignored) {
+                    continue;
+                }
+                consumer.accept(new StatsRow(key(resultSet), userAgent, null, null, resultSet.getLong("sum")));
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to read stats totals", e);
+        }
+    }
+
+    private StatsKey key(ResultSet resultSet) throws SQLException {
+        return new StatsKey(
+                resultSet.getString("repoowner"),
+                resultSet.getString("reponame"),
+                resultSet.getString("channel"),
+                resultSet.getString("artifact"),
+                resultSet.getString("version")
+        );
+    }
+
+    /**
+     * Daily rows before this date have been (or will be) removed, only the rollups cover them.
+     */
+    private LocalDate compactedBefore(LocalDate today) {
+        return StatsPeriod.WEEK.start(today.minusDays(dailyRetentionDays));
+    }
+
+    @Override
+    public void compact() throws IOException {
+        try (Connection connection = pool.getConnection()) {
+            for (String table : Arrays.asList(StatsPeriod.DAY.table(), StatsPeriod.DAY.uniquesTable())) {
+                try (PreparedStatement statement = connection.prepareStatement("delete from " + table + " where date < ?")) {
+                    statement.setDate(1, Date.valueOf(compactedBefore(LocalDate.now())));
+                    int rows = statement.executeUpdate();
+                    if (rows > 0) {
+                        Downloader.LOGGER.info("Compacted " + rows + " daily " + table + " rows into the rollups");
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to compact stats", e);
+        }
+    }
+
+    /**
+     * Splits the date range into the coarsest periods that fit in it, so long ranges read a row per month instead of per day.
+     * Days that are only left in the rollups are counted by the week they're in, if the week starts within the range.
+     */
+    private List<Segment> plan(LocalDate from, LocalDate to, boolean byDate) {
+        LocalDate compactedBefore = compactedBefore(LocalDate.now());
+        List<Segment> segments = new ArrayList<>();
+        if (byDate) {
+            // Every date has to be in the results as-is, only use weeks where there's nothing finer
+            if (from.isBefore(compactedBefore)) {
+                segments.add(new Segment(StatsPeriod.WEEK, from, min(to, compactedBefore.minusDays(1))));
+            }
+            if (!to.isBefore(compactedBefore)) {
+                segments.add(new Segment(StatsPeriod.DAY, max(from, compactedBefore), to));
+            }
+            return segments;
+        }
+
+        LocalDate cursor = from;
+        while (!cursor.isAfter(to)) {
+            StatsPeriod period = StatsPeriod.DAY;
+            for (StatsPeriod rollup : Arrays.asList(StatsPeriod.MONTH, StatsPeriod.WEEK)) {
+                if (rollup.start(cursor).equals(cursor) && !rollup.end(cursor).isAfter(to)) {
+                    period = rollup;
+                    break;
+                }
+            }
+            if (period == StatsPeriod.DAY && cursor.isBefore(compactedBefore)) {
+                period = StatsPeriod.WEEK;
+            }
+
+            LocalDate end = min(period.end(period.start(cursor)), to);
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && last.period() == period) {
+                segments.set(segments.size() - 1, new Segment(period, last.from(), end));
+            } else {
+                segments.add(new Segment(period, cursor, end));
+            }
+            cursor = end.plusDays(1);
+        }
+        return segments;
+    }
+
+    private static LocalDate min(LocalDate first, LocalDate second) {
+        return first.isBefore(second) ? first : second;
+    }
+
+    private static LocalDate max(LocalDate first, LocalDate second) {
+        return first.isAfter(second) ? first : second;
+    }
+
+    private Pair<String, List<PreparedConsumer>> where(Map<String, Set<String>> filters) {
+        List<String> requirements = new ArrayList<>();
+        List<PreparedConsumer> preparation = new ArrayList<>();
+
+        for (Map.Entry<String, Set<String>> filter : filters.entrySet()) {
+            String column = filter.getKey();
+            if (!KEY_COLUMNS.contains(column) && !column.equals("useragent")) {
+                throw new IllegalArgumentException("Cannot filter by " + column);
+            }
+
+            Set<String> values = filter.getValue();
+            requirements.add(column + " in (" + values.stream().map(key -> "?").collect(Collectors.joining(", ")) + ")");
+            for (String value : values) {
+                if (column.equals("useragent")) {
+                    byte sql = UserAgent.valueOf(value).sql();
+                    preparation.add((statement, i) -> statement.setByte(i, sql));
+                } else {
+                    preparation.add((statement, i) -> statement.setString(i, value));
+                }
+            }
+        }
+
+        if (requirements.isEmpty()) {
+            return Pair.of("", preparation);
+        }
+
+        return Pair.of(
+                "where " + String.join(" and ", requirements),
+                preparation
+        );
+    }
+
+    private int prepare(PreparedStatement statement, List<Segment> segments, Pair<String, List<PreparedConsumer>> where) throws SQLException {
+        int param = 0;
+        for (Segment segment : segments) {
+            statement.setDate(++param, Date.valueOf(segment.from()));
+            statement.setDate(++param, Date.valueOf(segment.to()));
+        }
+        for (PreparedConsumer consumer : where.getValue()) {
+            consumer.consume(statement, ++param);
+        }
+        return param;
+    }
+
+    @Override
+    public List<StatsGroup> query(StatsQuery query) throws IOException {
+        List<String> groups = query.groups();
+        StringBuilder groupSelect = new StringBuilder();
+        for (int i = 0; i < groups.size(); i++) {
+            if (!StatsQuery.COLUMNS.contains(groups.get(i))) {
+                throw new IllegalArgumentException("Cannot group by " + groups.get(i));
+            }
+            groupSelect.append(groups.get(i)).append(" as group").append(i).append(", ");
+        }
+
+        List<Segment> segments = plan(query.from(), query.to(), groups.contains("date"));
+        String source = segments.stream()
+                .map(segment -> "select artifactid, version, useragent, date, count from " + segment.period().table()
+                        + " where date >= ? and date <= ?")
+                .collect(Collectors.joining(" union all "));
+
+        Pair<String, List<PreparedConsumer>> where = where(query.filters());
+        String sql = "select " + groupSelect + " sum(count) as sum from (" + source + ") stats "
+                + "inner join artifact on artifact.artifactid = stats.artifactid "
+                + where.getKey() + " " + (groups.isEmpty() ? "" : "group by " + (String.join(", ", groups))) + " limit ?";
+
+        List<StatsGroup> results = new ArrayList<>();
+        try (Connection connection = pool.getConnection()) {
+            Map<List<String>, HyperLogLog> uniques = query.unique() ? uniques(connection, groups, groupSelect, segments, where) : null;
+
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                int param = prepare(statement, segments, where);
+                statement.setInt(++param, query.limit());
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        List<String> values = groupValues(resultSet, groups);
+                        HyperLogLog sketch = uniques != null ? uniques.get(values) : null;
+                        long unique = uniques == null ? -1 : sketch != null ? sketch.estimate() : 0;
+
+                        int userAgentIndex = groups.indexOf("useragent");
+                        if (userAgentIndex != -1) {
+                            try {
+                                values.set(userAgentIndex, UserAgent.getBySql(values.get(userAgentIndex)).name());
+                            } catch (IllegalArgumentException ignored) {}
+                        }
+                        results.add(new StatsGroup(values, resultSet.getLong("sum"), unique));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to query stats", e);
+        }
+        return results;
+    }
+
+    private List<String> groupValues(ResultSet resultSet, List<String> groups) throws SQLException {
+        List<String> values = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            values.add(resultSet.getString("group" + i).trim());
+        }
+        return values;
+    }
+
+    /**
+     * The unique downloader sketches for the same segments, merged by group.
+     */
+    private Map<List<String>, HyperLogLog> uniques(
+            Connection connection,
+            List<String> groups,
+            CharSequence groupSelect,
+            List<Segment> segments,
+            Pair<String, List<PreparedConsumer>> where
+    ) throws SQLException {
+        String source = segments.stream()
+                .map(segment -> "select artifactid, version, date, registers from " + segment.period().uniquesTable()
+                        + " where date >= ? and date <= ?")
+                .collect(Collectors.joining(" union all "));
+        String sql = "select " + groupSelect + " registers from (" + source + ") uniques "
+                + "inner join artifact on artifact.artifactid = uniques.artifactid "
+                + where.getKey();
+
+        Map<List<String>, HyperLogLog> uniques = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            prepare(statement, segments, where);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    uniques.computeIfAbsent(groupValues(resultSet, groups), key -> new HyperLogLog())
+                            .merge(new HyperLogLog(resultSet.getBytes("registers")));
+                }
+            }
+        }
+        return uniques;
+    }
+
+    @Override
+    public void export(StatsQuery query, RowConsumer consumer) throws IOException {
+        List<Segment> segments = plan(query.from(), query.to(), true);
+        String source = segments.stream()
+                .map(segment -> "select artifactid, version, useragent, date, count, "
+                        + "'" + segment.period().name() + "' as period from " + segment.period().table()
+                        + " where date >= ? and date <= ?")
+                .collect(Collectors.joining(" union all "));
+
+        Pair<String, List<PreparedConsumer>> where = where(query.filters());
+        String sql = "select date, period, repoowner, reponame, channel, artifact, version, useragent, count from (" + source + ") stats "
+                + "inner join artifact on artifact.artifactid = stats.artifactid "
+                + where.getKey();
+
+        try (Connection connection = exportPool.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                // Otherwise H2 builds the entire result before returning the first row
+                statement.execute("set lazy_query_execution true");
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(1000);
+                prepare(statement, segments, where);
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        UserAgent userAgent;
+                        try {
+                            userAgent = UserAgent.getBySql(resultSet.getString("useragent"));
+                        } catch (IllegalArgumentException ignored) {
+                            userAgent = UserAgent.UNKNOWN;
+                        }
+
+                        consumer.accept(new StatsRow(
+                                key(resultSet),
+                                userAgent,
+                                StatsPeriod.valueOf(resultSet.getString("period")),
+                                resultSet.getDate("date").toLocalDate(),
+                                resultSet.getLong("count")
+                        ));
+                    }
+                }
+            } finally {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("set lazy_query_execution false");
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to export stats", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        exportPool.dispose();
+        // Reclaims the space left by removed daily rows, H2 only fully compacts the file when closing it
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("shutdown compact");
+        } catch (SQLException e) {
+            Downloader.LOGGER.error("Failed to compact stats database", e);
+        }
+        pool.dispose();
+    }
+
+    private record Segment(StatsPeriod period, LocalDate from, LocalDate to) {}
+
+    @FunctionalInterface
+    private interface PreparedConsumer {
+        void consume(PreparedStatement statement, int index) throws SQLException;
+    }
+}
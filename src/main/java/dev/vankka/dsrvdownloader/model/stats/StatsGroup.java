@@ -0,0 +1,9 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import java.util.List;
+
+/**
+ * @param values the value of each group in the order of {@link StatsQuery#groups()}, user agents by name
+ * @param unique the estimated unique downloaders, {@code -1} if they weren't requested
+ */
+public record StatsGroup(List<String> values, long sum, long unique) {}
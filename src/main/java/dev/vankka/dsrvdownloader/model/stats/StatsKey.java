@@ -0,0 +1,6 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+/**
+ * One artifact of one version, what downloads are counted for.
+ */
+public record StatsKey(String repoOwner, String repoName, String channel, String artifact, String version) {}
@@ -0,0 +1,60 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import java.time.LocalDate;
+
+/**
+ * The granularities download stats are stored at, each period is entirely contained in the next coarser period
+ * (weeks are counted from the start of the month: the 1st, 8th, 15th, 22nd and 29th), so they never overlap.
+ * Rows are dated by the start of their period.
+ */
+public enum StatsPeriod {
+
+    DAY("stats", "uniques", "date"),
+    WEEK("stats_weekly", "uniques_weekly", "dateadd(day, -mod(day_of_month(date) - 1, 7), date)"),
+    MONTH("stats_monthly", "uniques_monthly", "dateadd(day, 1 - day_of_month(date), date)");
+
+    private final String table;
+    private final String uniquesTable;
+    private final String startSql;
+
+    StatsPeriod(String table, String uniquesTable, String startSql) {
+        this.table = table;
+        this.uniquesTable = uniquesTable;
+        this.startSql = startSql;
+    }
+
+    public String table() {
+        return table;
+    }
+
+    public String uniquesTable() {
+        return uniquesTable;
+    }
+
+    /**
+     * The start of the period containing the {@code date} column, in SQL.
+     */
+    public String startSql() {
+        return startSql;
+    }
+
+    public LocalDate start(LocalDate date) {
+        return switch (this) {
+            case DAY -> date;
+            case WEEK -> date.withDayOfMonth((date.getDayOfMonth() - 1) / 7 * 7 + 1);
+            case MONTH -> date.withDayOfMonth(1);
+        };
+    }
+
+    /**
+     * The last day of the period starting at the given date.
+     */
+    public LocalDate end(LocalDate start) {
+        return switch (this) {
+            case DAY -> start;
+            // The last week of the month is whatever is left after the 28th
+            case WEEK -> start.getDayOfMonth() == 29 ? start.withDayOfMonth(start.lengthOfMonth()) : start.plusDays(6);
+            case MONTH -> start.withDayOfMonth(start.lengthOfMonth());
+        };
+    }
+}
@@ -0,0 +1,26 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @param groups what to group by, any of {@link #COLUMNS}
+ * @param filters the allowed values by column (except date), user agents by name. Columns that aren't included allow everything
+ * @param from the first day (inclusive)
+ * @param to the last day (inclusive)
+ * @param limit the maximum amount of groups
+ * @param unique if unique downloaders should be estimated, can't be combined with user agents
+ */
+public record StatsQuery(
+        List<String> groups,
+        Map<String, Set<String>> filters,
+        LocalDate from,
+        LocalDate to,
+        int limit,
+        boolean unique
+) {
+
+    public static final List<String> COLUMNS = List.of("repoowner", "reponame", "channel", "artifact", "version", "useragent", "date");
+}
@@ -0,0 +1,13 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import dev.vankka.dsrvdownloader.model.UserAgent;
+
+import java.time.LocalDate;
+
+/**
+ * Downloads by one kind of user agent over a period.
+ *
+ * @param period the length of the period, {@code null} for all-time totals
+ * @param date the start of the period, {@code null} for all-time totals
+ */
+public record StatsRow(StatsKey key, UserAgent userAgent, StatsPeriod period, LocalDate date, long count) {}
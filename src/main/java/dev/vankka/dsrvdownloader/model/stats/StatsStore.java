@@ -0,0 +1,46 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where download stats are kept. Days older than the store's retention may only be kept by week,
+ * those weeks are counted for a range if they start within it.
+ */
+public interface StatsStore extends Closeable {
+
+    /**
+     * Adds the downloads and merges the unique downloaders, either all of it is stored or none of it.
+     *
+     * @param sequence the flush this is, stored along with it
+     */
+    void write(List<StatsRow> counts, List<StatsUniques> uniques, long sequence) throws IOException;
+
+    /**
+     * The sequence of the last write that was stored, {@code 0} if there hasn't been one.
+     */
+    long sequence() throws IOException;
+
+    /**
+     * The all-time downloads of each artifact version and user agent.
+     */
+    void totals(RowConsumer consumer) throws IOException;
+
+    List<StatsGroup> query(StatsQuery query) throws IOException;
+
+    /**
+     * Every row matching the query's filters and range, in no particular order. Groups, limit and unique are ignored.
+     */
+    void export(StatsQuery query, RowConsumer consumer) throws IOException;
+
+    /**
+     * Drops or merges the days that are past retention.
+     */
+    void compact() throws IOException;
+
+    @FunctionalInterface
+    interface RowConsumer {
+        void accept(StatsRow row) throws IOException;
+    }
+}
@@ -0,0 +1,10 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import dev.vankka.dsrvdownloader.util.HyperLogLog;
+
+import java.time.LocalDate;
+
+/**
+ * The unique downloaders of one day, merged with what's already stored for the day.
+ */
+public record StatsUniques(StatsKey key, LocalDate date, HyperLogLog sketch) {}
@@ -12,6 +12,8 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.List;
+
 @RestController
 public class ConfigController {
 
@@ -47,24 +49,41 @@ public class ConfigController {
     @PostMapping(path = "/admin/reload-channels")
     @ResponseStatus(code = HttpStatus.OK, reason = "Reloaded")
     public void reloadChannels() {
+        List<ChannelManager.ReloadFailure> failures;
         try {
-            channelManager.reloadVersionChannels();
+            failures = channelManager.reloadVersionChannels();
         } catch (Throwable e) {
             throw new ResponseStatusException(HttpStatus.I_AM_A_TEAPOT, "Failed to reload channels\n" + ExceptionUtils.getStackTrace(e));
         }
+        throwIfFailed(failures);
     }
 
     @PostMapping(path = "/admin/redownload")
     @ResponseStatus(code = HttpStatus.OK, reason = "Reloaded")
     public void reDownload() {
+        List<ChannelManager.ReloadFailure> failures;
         try {
             for (VersionChannel channel : channelManager.versionChannels()) {
                 channel.cleanupDirectory(true);
                 channel.refresh();
             }
-            channelManager.reloadVersionChannels();
+            failures = channelManager.reloadVersionChannels();
         } catch (Throwable e) {
             throw new ResponseStatusException(HttpStatus.I_AM_A_TEAPOT, "Failed to reload channels\n" + ExceptionUtils.getStackTrace(e));
         }
+        throwIfFailed(failures);
+    }
+
+    private void throwIfFailed(List<ChannelManager.ReloadFailure> failures) {
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        StringBuilder message = new StringBuilder("Failed to reload " + failures.size() + " channel(s)");
+        for (ChannelManager.ReloadFailure failure : failures) {
+            message.append('\n').append(failure.channel()).append(": ").append(failure.reason())
+                    .append(failure.keptPrevious() ? " (still serving the previous instance)" : " (not served)");
+        }
+        throw new ResponseStatusException(HttpStatus.I_AM_A_TEAPOT, message.toString());
     }
 }
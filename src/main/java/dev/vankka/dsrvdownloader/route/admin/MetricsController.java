@@ -0,0 +1,66 @@
+package dev.vankka.dsrvdownloader.route.admin;
+
+import dev.vankka.dsrvdownloader.manager.ArtifactCacheManager;
+import dev.vankka.dsrvdownloader.manager.StatsManager;
+import dev.vankka.dsrvdownloader.manager.TransferManager;
+import dev.vankka.dsrvdownloader.util.ConcurrencyLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@RestController
+public class MetricsController {
+
+    private final TransferManager transferManager;
+    private final ArtifactCacheManager artifactCacheManager;
+    private final StatsManager statsManager;
+
+    public MetricsController(
+            TransferManager transferManager,
+            ArtifactCacheManager artifactCacheManager,
+            StatsManager statsManager
+    ) {
+        this.transferManager = transferManager;
+        this.artifactCacheManager = artifactCacheManager;
+        this.statsManager = statsManager;
+    }
+
+    @GetMapping(path = "/admin/metrics")
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> transfers = new LinkedHashMap<>();
+        transfers.put("active", transferManager.activeTransfers());
+        transfers.put("memory", limiter(transferManager.memoryLimiter()));
+        transfers.put("disk", limiter(transferManager.diskLimiter()));
+
+        Map<String, Object> cache = new LinkedHashMap<>();
+        cache.put("size", artifactCacheManager.size());
+        cache.put("maximum", artifactCacheManager.maximum());
+        cache.put("hitRate", artifactCacheManager.hitRate());
+
+        StatsManager.FlushMetrics flushMetrics = statsManager.flushMetrics();
+        Map<String, Object> statsFlush = new LinkedHashMap<>();
+        statsFlush.put("lastFlush", flushMetrics.time());
+        statsFlush.put("durationMillis", TimeUnit.NANOSECONDS.toMillis(flushMetrics.duration()));
+        statsFlush.put("rows", flushMetrics.rows());
+        statsFlush.put("failures", flushMetrics.failures());
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("transfers", transfers);
+        metrics.put("artifactCache", cache);
+        metrics.put("statsFlush", statsFlush);
+        return metrics;
+    }
+
+    private Map<String, Object> limiter(ConcurrencyLimiter limiter) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("limit", limiter.limit());
+        values.put("inFlight", limiter.inFlight());
+        values.put("rejected", limiter.rejected());
+        values.put("averageLatencyMillis", limiter.averageLatencyMillis());
+        values.put("retryAfterSeconds", limiter.retryAfterSeconds());
+        return values;
+    }
+}
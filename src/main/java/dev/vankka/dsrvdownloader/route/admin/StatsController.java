@@ -1,13 +1,18 @@
 package dev.vankka.dsrvdownloader.route.admin;
 
 import dev.vankka.dsrvdownloader.manager.StatsManager;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
 import java.net.URL;
-import java.sql.SQLException;
 import java.util.Enumeration;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -32,9 +37,52 @@ public class StatsController {
             @RequestParam(name = "useragent", required = false) String useragent,
             @RequestParam(name = "from", required = false) String from,
             @RequestParam(name = "to", required = false) String to,
-            @RequestParam(name = "limit", defaultValue = "50") int limit
-    ) throws SQLException {
-        return statsManager.query(group, repoOwner, repoName, channel, artifact, version, useragent, from, to, limit);
+            @RequestParam(name = "limit", defaultValue = "50") int limit,
+            @RequestParam(name = "unique", defaultValue = "false") boolean unique
+    ) throws IOException {
+        return statsManager.query(group, repoOwner, repoName, channel, artifact, version, useragent, from, to, limit, unique);
+    }
+
+    @GetMapping(path = "/admin/stats/export")
+    public ResponseEntity<StreamingResponseBody> exportStats(
+            @RequestParam(name = "repoOwner", required = false) String repoOwner,
+            @RequestParam(name = "repoName", required = false) String repoName,
+            @RequestParam(name = "channel", required = false) String channel,
+            @RequestParam(name = "artifact", required = false) String artifact,
+            @RequestParam(name = "version", required = false) String version,
+            @RequestParam(name = "useragent", required = false) String useragent,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to,
+            @RequestParam(name = "format", defaultValue = "ndjson") String format
+    ) {
+        boolean csv;
+        if (format.equalsIgnoreCase("csv")) {
+            csv = true;
+        } else if (format.equalsIgnoreCase("ndjson")) {
+            csv = false;
+        } else {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "format must be ndjson or csv");
+        }
+
+        StreamingResponseBody body = outputStream ->
+                statsManager.export(repoOwner, repoName, channel, artifact, version, useragent, from, to, csv, outputStream);
+        return ResponseEntity.ok()
+                .contentType(csv ? new MediaType("text", "csv") : new MediaType("application", "x-ndjson"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"stats." + (csv ? "csv" : "ndjson") + "\"")
+                .body(body);
+    }
+
+    @GetMapping(path = "/admin/stats/live")
+    public Object getLiveStats(
+            @RequestParam(name = "group", required = false) String group,
+            @RequestParam(name = "repoOwner", required = false) String repoOwner,
+            @RequestParam(name = "repoName", required = false) String repoName,
+            @RequestParam(name = "channel", required = false) String channel,
+            @RequestParam(name = "artifact", required = false) String artifact,
+            @RequestParam(name = "version", required = false) String version,
+            @RequestParam(name = "useragent", required = false) String useragent
+    ) {
+        return statsManager.live(group, repoOwner, repoName, channel, artifact, version, useragent);
     }
 
     @GetMapping(path = "/admin/version")
@@ -2,6 +2,7 @@ package dev.vankka.dsrvdownloader.route.v2;
 
 import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
 import dev.vankka.dsrvdownloader.manager.ChannelManager;
+import dev.vankka.dsrvdownloader.model.ChannelReadiness;
 import dev.vankka.dsrvdownloader.model.ChannelResponse;
 import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
 import io.swagger.annotations.*;
@@ -38,4 +39,17 @@ public class ChannelsRouteV2 {
         }
         return channels;
     }
+
+    @GetMapping(
+            path = "/v2/channels/readiness",
+            produces = MediaType.APPLICATION_JSON_VALUE
+    )
+    @CrossOrigin
+    @ApiOperation(value = "Channel readiness", notes = "If each configured channel is loading, ready or failed to load")
+    @ApiResponses({
+            @ApiResponse(code = 200 /* OK */, message = "Success")
+    })
+    public List<ChannelReadiness> readiness() {
+        return channelManager.readiness();
+    }
 }
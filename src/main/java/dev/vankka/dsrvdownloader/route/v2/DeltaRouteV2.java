@@ -0,0 +1,143 @@
+package dev.vankka.dsrvdownloader.route.v2;
+
+import dev.vankka.dsrvdownloader.Downloader;
+import dev.vankka.dsrvdownloader.manager.ChannelManager;
+import dev.vankka.dsrvdownloader.manager.StatsManager;
+import dev.vankka.dsrvdownloader.manager.TransferManager;
+import dev.vankka.dsrvdownloader.model.Artifact;
+import dev.vankka.dsrvdownloader.model.ErrorModel;
+import dev.vankka.dsrvdownloader.model.Version;
+import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
+import dev.vankka.dsrvdownloader.util.AsyncTransfer;
+import dev.vankka.dsrvdownloader.util.ConcurrencyLimiter;
+import dev.vankka.dsrvdownloader.util.RequestSourceUtil;
+import io.swagger.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+@RestController
+@Api(tags = "v2")
+public class DeltaRouteV2 {
+
+    private final ChannelManager channelManager;
+    private final StatsManager statsManager;
+    private final TransferManager transferManager;
+
+    public DeltaRouteV2(ChannelManager channelManager, StatsManager statsManager, TransferManager transferManager) {
+        this.channelManager = channelManager;
+        this.statsManager = statsManager;
+        this.transferManager = transferManager;
+    }
+
+    @RequestMapping(
+            path = "/v2/{repoOwner}/{repoName}/{releaseChannel}/delta/{from}/{to}/{artifactIdentifier}",
+            produces = MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            method = {RequestMethod.GET, RequestMethod.HEAD}
+    )
+    @ApiOperation(
+            value = "Delta",
+            notes = "A binary delta that turns the artifact of one version into the same artifact of the next version. "
+                    + "The sha256 of the resulting artifact is in the X-Target-Sha256 header"
+    )
+    @ApiResponses({
+            @ApiResponse(code = 200 /* OK */, message = "Success"),
+            @ApiResponse(code = 304 /* Not Modified */, message = "Not Modified"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class),
+            @ApiResponse(code = 404 /* Not Found */, message = "No delta between these versions", response = ErrorModel.class),
+            @ApiResponse(code = 503 /* Service Unavailable */, message = "Too many downloads in progress, retry after the time in the Retry-After header", response = ErrorModel.class),
+            @ApiResponse(code = 503 /* Service Unavailable */, message = "Channel is still loading, retry after the time in the Retry-After header", response = ErrorModel.class)
+    })
+    public Object handle(
+            @PathVariable @ApiParam(example = "DiscordSRV") String repoOwner,
+            @PathVariable @ApiParam(example = "DiscordSRV") String repoName,
+            @PathVariable @ApiParam(example = "release") String releaseChannel,
+            @PathVariable @ApiParam(example = "v1.0.0") String from,
+            @PathVariable @ApiParam(example = "latest") String to,
+            @PathVariable @ApiParam(example = "jar") String artifactIdentifier,
+            @RequestHeader(name = "User-Agent", required = false) String userAgent,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) {
+        VersionChannel channel = channelManager.getChannel(repoOwner, repoName, releaseChannel)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown repository or channel"));
+
+        boolean latest = to.equalsIgnoreCase(VersionChannel.LATEST_IDENTIFIER);
+        Version version = latest ? channel.latestVersion() : channel.versionsByIdentifier().get(to);
+        if (version == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Version not found");
+        }
+
+        Artifact artifact = version.getArtifactsByIdentifier().get(artifactIdentifier);
+        if (artifact == null) {
+            artifact = version.getArtifactsByFileName().get(artifactIdentifier);
+        }
+        if (artifact == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Artifact not found");
+        }
+
+        Path deltaFile = artifact.getDeltasByFromIdentifier().get(from);
+        if (deltaFile == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No delta available from " + from);
+        }
+
+        response.setHeader(HttpHeaders.CACHE_CONTROL, latest ? "no-cache" : "public, max-age=31536000, immutable");
+        if (new ServletWebRequest(request, response).checkNotModified("\"" + from + "-" + artifact.getSha256() + "\"")) {
+            return null;
+        }
+
+        long size;
+        try {
+            size = Files.size(deltaFile);
+        } catch (IOException e) {
+            // Removed with its version
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No delta available from " + from);
+        }
+
+        response.addHeader("Content-Disposition", "attachment; filename=\"" + deltaFile.getFileName() + "\"");
+        response.addHeader("Content-Type", MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.addHeader("X-Target-Version", version.getIdentifier());
+        response.addHeader("X-Target-Sha256", artifact.getSha256());
+        response.addHeader("X-Target-Size", Long.toString(artifact.getSize()));
+        response.setContentLengthLong(size);
+        response.setStatus(HttpStatus.OK.value());
+
+        if (HttpMethod.HEAD.matches(request.getMethod())) {
+            return null;
+        }
+
+        // Updating through a delta is still a download of the target version
+        Artifact downloadedArtifact = artifact;
+        String requestSource = RequestSourceUtil.getRequestSource(request);
+        transferManager.consumeRateLimit(requestSource);
+        if (transferManager.sendfile(request, response, deltaFile, 0, size)) {
+            statsManager.increment(channel, version, downloadedArtifact, userAgent, requestSource);
+            return null;
+        }
+
+        ConcurrencyLimiter.Permit permit = transferManager.acquire(response, false);
+        try {
+            transferManager.transfer(request, List.of(new AsyncTransfer.Segment.File(deltaFile, 0, size)), result -> {
+                permit.release(result.startLatency());
+                if (result.complete()) {
+                    statsManager.increment(channel, version, downloadedArtifact, userAgent, requestSource);
+                }
+            });
+        } catch (IOException e) {
+            permit.release(-1);
+            Downloader.LOGGER.error("Failed to start transferring " + deltaFile, e);
+        }
+        return null;
+    }
+}
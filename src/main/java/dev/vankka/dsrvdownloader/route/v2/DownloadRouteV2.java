@@ -1,32 +1,37 @@
 package dev.vankka.dsrvdownloader.route.v2;
 
-import com.github.benmanes.caffeine.cache.Caffeine;
+import dev.vankka.dsrvdownloader.Downloader;
+import dev.vankka.dsrvdownloader.manager.ArtifactCacheManager;
 import dev.vankka.dsrvdownloader.manager.ChannelManager;
 import dev.vankka.dsrvdownloader.manager.StatsManager;
+import dev.vankka.dsrvdownloader.manager.TransferManager;
 import dev.vankka.dsrvdownloader.model.Artifact;
 import dev.vankka.dsrvdownloader.model.ErrorModel;
 import dev.vankka.dsrvdownloader.model.Version;
 import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
+import dev.vankka.dsrvdownloader.util.AsyncTransfer;
+import dev.vankka.dsrvdownloader.util.ConcurrencyLimiter;
+import dev.vankka.dsrvdownloader.util.HttpRangeUtil;
 import dev.vankka.dsrvdownloader.util.RequestSourceUtil;
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.BucketConfiguration;
-import io.github.bucket4j.caffeine.CaffeineProxyManager;
-import io.github.bucket4j.distributed.BucketProxy;
-import io.github.bucket4j.distributed.remote.RemoteBucketState;
 import io.swagger.annotations.*;
-import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.view.RedirectView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.*;
-import java.nio.file.Files;
-import java.time.Duration;
-import java.util.function.Supplier;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 @RestController
 @Api(tags = "v2")
@@ -34,32 +39,36 @@ public class DownloadRouteV2 {
 
     private final ChannelManager channelManager;
     private final StatsManager statsManager;
-
-    // 10 downloads per 1 minute
-    @SuppressWarnings("unchecked")
-    private final CaffeineProxyManager<String> downloadRateLimit = new CaffeineProxyManager<>(
-            (Caffeine<String, RemoteBucketState>) (Object) Caffeine.newBuilder(),
-            Duration.ofMinutes(1)
-    );
-    private final Supplier<BucketConfiguration> rateLimitSupplier = () -> BucketConfiguration.builder()
-            .addLimit(Bandwidth.simple(10, Duration.ofMinutes(1))).build();
-
-    public DownloadRouteV2(ChannelManager channelManager, StatsManager statsManager) {
+    private final TransferManager transferManager;
+    private final ArtifactCacheManager artifactCacheManager;
+
+    public DownloadRouteV2(
+            ChannelManager channelManager,
+            StatsManager statsManager,
+            TransferManager transferManager,
+            ArtifactCacheManager artifactCacheManager
+    ) {
         this.channelManager = channelManager;
         this.statsManager = statsManager;
+        this.transferManager = transferManager;
+        this.artifactCacheManager = artifactCacheManager;
     }
 
     @RequestMapping(
             path = "/v2/{repoOwner}/{repoName}/{releaseChannel}/download/{identifier}/{artifactIdentifier}",
             produces = MediaType.APPLICATION_OCTET_STREAM_VALUE,
-            method = {RequestMethod.GET, RequestMethod.POST}
+            method = {RequestMethod.GET, RequestMethod.HEAD, RequestMethod.POST}
     )
     @ApiOperation(value = "Download", notes = "Download a version")
     @ApiResponses({
             @ApiResponse(code = 200 /* OK */, message = "Success"),
+            @ApiResponse(code = 206 /* Partial Content */, message = "Partial Content"),
             @ApiResponse(code = 302 /* Found */, message = "Redirect"),
+            @ApiResponse(code = 304 /* Not Modified */, message = "Not Modified"),
             @ApiResponse(code = 307 /* Temporary Redirect */, message = "Redirect"),
-            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class)
+            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class),
+            @ApiResponse(code = 416 /* Range Not Satisfiable */, message = "Range Not Satisfiable", response = ErrorModel.class),
+            @ApiResponse(code = 503 /* Service Unavailable */, message = "Too many downloads in progress or the channel is still loading, retry after the time in the Retry-After header", response = ErrorModel.class)
     })
     public Object handle(
             @PathVariable @ApiParam(example = "DiscordSRV") String repoOwner,
@@ -103,35 +112,125 @@ public class DownloadRouteV2 {
 
         if (isRedirect && preferRedirect) {
             String url = channel.getUrl(request) + "/download/" + version.getIdentifier() + "/" + artifact.getFileName();
+            // Where latest points to changes, always check back
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
             return new RedirectView(url);
         }
 
-        String requester = RequestSourceUtil.getRequestSource(request);
-        BucketProxy bucket = downloadRateLimit.builder().build(requester, rateLimitSupplier);
+        // A version identifier pins the exact file, latest can change under the same url
+        boolean pinned = !identifier.equalsIgnoreCase(VersionChannel.LATEST_IDENTIFIER);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, pinned ? "public, max-age=31536000, immutable" : "no-cache");
 
-        if (!bucket.tryConsume(1)) {
-            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS);
+        String etag = "\"" + artifact.getSha256() + "\"";
+        if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+            return null;
+        }
+
+        long size = artifact.getSize();
+
+        List<HttpRangeUtil.Range> ranges = null;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && HttpMethod.GET.matches(request.getMethod())) {
+            // If-Range: only resume if the client still has the same file
+            String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+            if (ifRange == null || ifRange.equals(etag)) {
+                ranges = HttpRangeUtil.parse(rangeHeader, size);
+            }
         }
 
-        byte[] content = artifact.getContent();
+        response.addHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        if (ranges != null && ranges.isEmpty()) {
+            response.addHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+
+        // Only count the request that finishes the file: an interrupted download isn't counted, the request resuming it is.
+        // Probes for the first bytes and the chunks before the last one of a split download aren't counted
+        boolean countDownload = ranges == null || ranges.get(ranges.size() - 1).end() == size - 1;
+        // Read now, the request is recycled by the time the transfer ends
+        String requestSource = RequestSourceUtil.getRequestSource(request);
+
+        ConcurrencyLimiter.Permit permit;
+        List<AsyncTransfer.Segment> segments;
         response.addHeader("Content-Disposition", "attachment; filename=\"" + artifact.getFileName() + "\"");
-        response.addHeader("Content-Type", MediaType.APPLICATION_OCTET_STREAM_VALUE);
-        response.setContentLengthLong(artifact.getSize());
-        response.setStatus(200);
-
-        try (OutputStream outputStream = new BufferedOutputStream(response.getOutputStream())) {
-            try (InputStream inputStream = new BufferedInputStream(
-                    content != null ? new ByteArrayInputStream(content) : Files.newInputStream(artifact.getFile())
-            )) {
-                byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
-                int amount;
-                while ((amount = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, amount);
+
+        if (ranges == null || ranges.size() == 1) {
+            HttpRangeUtil.Range range = ranges != null ? ranges.get(0) : new HttpRangeUtil.Range(0, size - 1);
+            response.addHeader("Content-Type", MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setContentLengthLong(range.length());
+            if (ranges != null) {
+                response.addHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(size));
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            } else {
+                response.setStatus(HttpStatus.OK.value());
+            }
+
+            if (HttpMethod.HEAD.matches(request.getMethod())) {
+                // Answered from the metadata alone
+                return null;
+            }
+            transferManager.consumeRateLimit(requestSource);
+
+            if (transferManager.sendfile(request, response, artifact.getFile(), range.start(), range.end() + 1)) {
+                // Tomcat writes the file to the socket once we return (zero-copy), no need to map it
+                if (countDownload) {
+                    statsManager.increment(channel, version, artifact, userAgent, requestSource);
                 }
+                return null;
             }
 
-            statsManager.increment(channel, userAgent, artifact.getIdentifier(), version.getIdentifier());
-        } catch (IOException ignored) {}
+            ByteBuffer content = artifactCacheManager.getContent(artifact);
+            permit = transferManager.acquire(response, content != null);
+            segments = List.of(segment(content, artifact, range));
+        } else {
+            transferManager.consumeRateLimit(requestSource);
+
+            ByteBuffer content = artifactCacheManager.getContent(artifact);
+            permit = transferManager.acquire(response, content != null);
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            segments = new ArrayList<>(ranges.size() * 2 + 1);
+            long contentLength = 0;
+            for (HttpRangeUtil.Range range : ranges) {
+                byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                        + "Content-Type: " + MediaType.APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+                        + "Content-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                segments.add(AsyncTransfer.Segment.bytes(partHeader));
+                segments.add(segment(content != null ? content.duplicate() : null, artifact, range));
+                contentLength += partHeader.length + range.length();
+            }
+            byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            segments.add(AsyncTransfer.Segment.bytes(end));
+            contentLength += end.length;
+
+            response.addHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            response.setContentLengthLong(contentLength);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        }
+
+        // Written as the client takes it, without holding on to this thread
+        Artifact downloadedArtifact = artifact;
+        try {
+            transferManager.transfer(request, segments, result -> {
+                permit.release(result.startLatency());
+                if (result.complete() && countDownload) {
+                    statsManager.increment(channel, version, downloadedArtifact, userAgent, requestSource);
+                }
+            });
+        } catch (IOException e) {
+            permit.release(-1);
+            Downloader.LOGGER.error("Failed to start transferring " + downloadedArtifact.getFile(), e);
+        }
         return null;
     }
+
+    private AsyncTransfer.Segment segment(@Nullable ByteBuffer content, Artifact artifact, HttpRangeUtil.Range range) {
+        if (content != null) {
+            // Straight from the mapped file (page cache)
+            content.limit((int) (range.end() + 1)).position((int) range.start());
+            return new AsyncTransfer.Segment.Buffer(content);
+        }
+
+        return new AsyncTransfer.Segment.File(artifact.getFile(), range.start(), range.end() + 1);
+    }
 }
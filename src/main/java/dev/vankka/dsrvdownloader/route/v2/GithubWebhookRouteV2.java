@@ -3,7 +3,6 @@ package dev.vankka.dsrvdownloader.route.v2;
 import com.fasterxml.jackson.databind.JsonNode;
 import dev.vankka.dsrvdownloader.Downloader;
 import dev.vankka.dsrvdownloader.config.GithubWebhookConfig;
-import dev.vankka.dsrvdownloader.config.VersionChannelConfig;
 import dev.vankka.dsrvdownloader.manager.ChannelManager;
 import dev.vankka.dsrvdownloader.manager.ConfigManager;
 import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
@@ -81,11 +80,8 @@ public class GithubWebhookRouteV2 {
         String repoOwner = repository.get("owner").get("login").asText();
         String repoName = repository.get("name").asText();
 
-        for (VersionChannel versionChannel : channelManager.versionChannels()) {
-            VersionChannelConfig config = versionChannel.getConfig();
-            if (config.repoOwner().equalsIgnoreCase(repoOwner) && config.repoName().equalsIgnoreCase(repoName)) {
-                versionChannel.receiveWebhook(event, node);
-            }
+        for (VersionChannel versionChannel : channelManager.getChannelsForRepo(repoOwner, repoName)) {
+            versionChannel.receiveWebhook(event, node);
         }
     }
 
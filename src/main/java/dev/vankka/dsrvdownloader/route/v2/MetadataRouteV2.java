@@ -36,7 +36,8 @@ public class MetadataRouteV2 {
     @ApiOperation(value = "Metadata", notes = "Metadata")
     @ApiResponses({
             @ApiResponse(code = 200 /* OK */, message = "Success", response = MetadataResponse.class),
-            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class)
+            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class),
+            @ApiResponse(code = 503 /* Service Unavailable */, message = "Channel is still loading, retry after the time in the Retry-After header", response = ErrorModel.class)
     })
     public MetadataResponse handle(
             @PathVariable @ApiParam(example = "DiscordSRV") String repoOwner,
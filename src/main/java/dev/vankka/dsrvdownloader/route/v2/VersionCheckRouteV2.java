@@ -5,14 +5,20 @@ import dev.vankka.dsrvdownloader.model.ErrorModel;
 import dev.vankka.dsrvdownloader.model.VersionCheck;
 import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
 import io.swagger.annotations.*;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 @RestController
 @Api(tags = "v2")
 public class VersionCheckRouteV2 {
@@ -31,17 +37,29 @@ public class VersionCheckRouteV2 {
     @ApiOperation(value = "Version Check", notes = "Version Check")
     @ApiResponses({
             @ApiResponse(code = 200 /* OK */, message = "Success", response = VersionCheck.class),
-            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class)
+            @ApiResponse(code = 304 /* Not Modified */, message = "Not Modified"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class),
+            @ApiResponse(code = 503 /* Service Unavailable */, message = "Channel is still loading, retry after the time in the Retry-After header", response = ErrorModel.class)
     })
-    public VersionCheck handle(
+    public ResponseEntity<byte[]> handle(
             @PathVariable @ApiParam(example = "DiscordSRV") String repoOwner,
             @PathVariable @ApiParam(example = "DiscordSRV") String repoName,
             @PathVariable @ApiParam(example = "release") String releaseChannel,
-            @PathVariable @ApiParam(example = "v1.0.0") String identifier
+            @PathVariable @ApiParam(example = "v1.0.0") String identifier,
+            HttpServletRequest request,
+            HttpServletResponse response
     ) {
         VersionChannel channel = channelManager.getChannel(repoOwner, repoName, releaseChannel)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown repository or channel"));
 
-        return channel.checkVersion(identifier);
+        // The result only changes with the channel's versions (the identifier is part of the url)
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        if (new ServletWebRequest(request, response).checkNotModified("\"" + channel.versionsHash() + "\"")) {
+            return null;
+        }
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(channel.checkVersion(identifier));
     }
 }
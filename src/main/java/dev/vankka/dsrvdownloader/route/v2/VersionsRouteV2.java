@@ -1,16 +1,22 @@
 package dev.vankka.dsrvdownloader.route.v2;
 
 import dev.vankka.dsrvdownloader.manager.ChannelManager;
+import dev.vankka.dsrvdownloader.model.EncodedResponse;
 import dev.vankka.dsrvdownloader.model.ErrorModel;
 import dev.vankka.dsrvdownloader.model.VersionResponse;
 import dev.vankka.dsrvdownloader.model.channel.VersionChannel;
+import dev.vankka.dsrvdownloader.util.HttpContentUtil;
 import io.swagger.annotations.*;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.server.ResponseStatusException;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @RestController
 @Api(tags = "v2")
@@ -30,18 +36,35 @@ public class VersionsRouteV2 {
     @ApiOperation(value = "Versions", notes = "Versions")
     @ApiResponses({
             @ApiResponse(code = 200 /* OK */, message = "Success", response = VersionResponse.class),
-            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class)
+            @ApiResponse(code = 304 /* Not Modified */, message = "Not Modified"),
+            @ApiResponse(code = 400 /* Bad Request */, message = "Bad Request", response = ErrorModel.class),
+            @ApiResponse(code = 503 /* Service Unavailable */, message = "Channel is still loading, retry after the time in the Retry-After header", response = ErrorModel.class)
     })
-    public VersionResponse handle(
+    public ResponseEntity<byte[]> handle(
             @PathVariable @ApiParam(example = "DiscordSRV") String repoOwner,
             @PathVariable @ApiParam(example = "DiscordSRV") String repoName,
             @PathVariable @ApiParam(example = "release") String releaseChannel,
             @RequestParam(name = "preferIdentifier", defaultValue = "false") boolean preferIdentifier,
-            HttpServletRequest request
+            @RequestHeader(name = "Accept-Encoding", required = false) String acceptEncoding,
+            HttpServletRequest request,
+            HttpServletResponse response
     ) {
         VersionChannel channel = channelManager.getChannel(repoOwner, repoName, releaseChannel)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown repository or channel"));
 
-        return channel.versionResponse(request, preferIdentifier);
+        EncodedResponse encodedResponse = channel.encodedVersionResponse(request, preferIdentifier);
+
+        boolean gzip = HttpContentUtil.acceptsEncoding(acceptEncoding, "gzip");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (new ServletWebRequest(request, response).checkNotModified(encodedResponse.etag(gzip))) {
+            return null;
+        }
+
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (gzip) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(encodedResponse.gzip());
+        }
+        return builder.body(encodedResponse.json());
     }
 }
@@ -0,0 +1,200 @@
+package dev.vankka.dsrvdownloader.util;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Writes a response body with non-blocking servlet I/O, the container only calls back in when the client can take more,
+ * so no thread waits on slow clients.
+ */
+public class AsyncTransfer implements WriteListener, AsyncListener {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream outputStream;
+    private final Deque<Segment> segments;
+    private final Consumer<Result> onEnd;
+    private final AtomicBoolean ended = new AtomicBoolean(false);
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private volatile long lastProgress = System.currentTimeMillis();
+    private final long started = System.nanoTime();
+    private volatile long startLatency = -1;
+
+    private FileChannel fileChannel;
+    private long filePosition;
+
+    /**
+     * @param onEnd called once when the transfer ends
+     */
+    public AsyncTransfer(AsyncContext asyncContext, List<Segment> segments, Consumer<Result> onEnd) throws IOException {
+        this.asyncContext = asyncContext;
+        this.outputStream = asyncContext.getResponse().getOutputStream();
+        this.segments = new ArrayDeque<>(segments);
+        this.onEnd = onEnd;
+
+        // Idle timeouts are handled by timeoutIfIdle instead
+        asyncContext.setTimeout(0);
+        asyncContext.addListener(this);
+        outputStream.setWriteListener(this);
+    }
+
+    public boolean hasEnded() {
+        return ended.get();
+    }
+
+    /**
+     * Ends the transfer if nothing could be written for longer than the given timeout.
+     * @return if the transfer has ended
+     */
+    public boolean timeoutIfIdle(long now, long timeout) {
+        if (now - lastProgress > timeout) {
+            end(false, true);
+        }
+        return ended.get();
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (outputStream.isReady() && !ended.get()) {
+            Segment segment = segments.peek();
+            if (segment == null) {
+                end(true, true);
+                return;
+            }
+
+            int amount = read(segment);
+            if (amount == -1) {
+                segments.poll();
+                closeFile();
+                continue;
+            }
+
+            outputStream.write(buffer, 0, amount);
+            lastProgress = System.currentTimeMillis();
+            if (startLatency == -1) {
+                startLatency = System.nanoTime() - started;
+            }
+        }
+    }
+
+    private int read(Segment segment) throws IOException {
+        if (segment instanceof Segment.Buffer bufferSegment) {
+            ByteBuffer byteBuffer = bufferSegment.buffer();
+            if (!byteBuffer.hasRemaining()) {
+                return -1;
+            }
+
+            int amount = Math.min(byteBuffer.remaining(), CHUNK_SIZE);
+            byteBuffer.get(buffer, 0, amount);
+            return amount;
+        }
+
+        Segment.File fileSegment = (Segment.File) segment;
+        if (fileChannel == null) {
+            fileChannel = FileChannel.open(fileSegment.file(), StandardOpenOption.READ);
+            filePosition = fileSegment.start();
+        }
+
+        long remaining = fileSegment.end() - filePosition;
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        int amount = fileChannel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(remaining, CHUNK_SIZE)), filePosition);
+        if (amount == -1) {
+            throw new IOException("File ended before expected size");
+        }
+        filePosition += amount;
+        return amount;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        end(false, true);
+    }
+
+    private void end(boolean success, boolean complete) {
+        if (!ended.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            if (complete) {
+                asyncContext.complete();
+            }
+        } finally {
+            onEnd.accept(new Result(success, startLatency));
+        }
+    }
+
+    private void closeFile() {
+        if (fileChannel == null) {
+            return;
+        }
+
+        try {
+            fileChannel.close();
+        } catch (IOException ignored) {}
+        fileChannel = null;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        closeFile();
+        end(false, false);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        end(false, true);
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        end(false, true);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+
+    /**
+     * @param complete if the entire body was written
+     * @param startLatency how long it took from setting up the transfer until the first chunk was written (nanoseconds),
+     *                     which is waiting for a container thread and reading from the disk.
+     *                     The socket's send buffer is still empty at that point, so it only depends on the server
+     *                     unlike the duration of the whole transfer. {@code -1} if nothing was written
+     */
+    public record Result(boolean complete, long startLatency) {}
+
+    public sealed interface Segment {
+
+        static Segment bytes(byte[] bytes) {
+            return new Buffer(ByteBuffer.wrap(bytes));
+        }
+
+        /**
+         * @param buffer the buffer, from its position to its limit
+         */
+        record Buffer(ByteBuffer buffer) implements Segment {}
+
+        /**
+         * @param start the first byte (inclusive)
+         * @param end the last byte (exclusive)
+         */
+        record File(Path file, long start, long end) implements Segment {}
+    }
+}
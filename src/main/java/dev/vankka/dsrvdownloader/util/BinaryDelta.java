@@ -0,0 +1,188 @@
+package dev.vankka.dsrvdownloader.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Block matching binary delta (rsync style) between two files.
+ * <p>
+ * Format (gzip compressed, big endian):
+ * <pre>
+ * "DSRVDLT1"           magic
+ * long                 target size
+ * ops until END:
+ *   byte 1 (COPY)      long source offset, int length: copy from the source file
+ *   byte 2 (ADD)       int length, bytes: literal bytes
+ *   byte 0 (END)
+ * </pre>
+ */
+public final class BinaryDelta {
+
+    private static final byte[] MAGIC = "DSRVDLT1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_ADD = 2;
+
+    private static final int BLOCK_SIZE = 32;
+    private static final int HASH_BASE = 31;
+    private static final int MAX_CANDIDATES = 8;
+
+    private BinaryDelta() {}
+
+    public static void create(Path source, Path target, Path delta) throws IOException {
+        byte[] sourceBytes = Files.readAllBytes(source);
+        byte[] targetBytes = Files.readAllBytes(target);
+
+        try (DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(delta)))
+        )) {
+            outputStream.write(MAGIC);
+            outputStream.writeLong(targetBytes.length);
+            writeOps(sourceBytes, targetBytes, outputStream);
+            outputStream.writeByte(OP_END);
+        }
+    }
+
+    public static void apply(Path source, Path delta, OutputStream output) throws IOException {
+        byte[] sourceBytes = Files.readAllBytes(source);
+
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(Files.newInputStream(delta)))
+        )) {
+            byte[] magic = new byte[MAGIC.length];
+            inputStream.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a delta file");
+            }
+
+            long remaining = inputStream.readLong();
+            byte op;
+            while ((op = inputStream.readByte()) != OP_END) {
+                switch (op) {
+                    case OP_COPY -> {
+                        long offset = inputStream.readLong();
+                        int length = inputStream.readInt();
+                        output.write(sourceBytes, (int) offset, length);
+                        remaining -= length;
+                    }
+                    case OP_ADD -> {
+                        int length = inputStream.readInt();
+                        byte[] bytes = new byte[length];
+                        inputStream.readFully(bytes);
+                        output.write(bytes);
+                        remaining -= length;
+                    }
+                    default -> throw new IOException("Unknown delta op " + op);
+                }
+            }
+
+            if (remaining != 0) {
+                throw new IOException("Delta doesn't match the target size");
+            }
+        }
+    }
+
+    private static void writeOps(byte[] source, byte[] target, DataOutputStream outputStream) throws IOException {
+        if (source.length < BLOCK_SIZE || target.length < BLOCK_SIZE) {
+            writeAdd(target, 0, target.length, outputStream);
+            return;
+        }
+
+        // Index the source by the hash of each (non-overlapping) block
+        int blocks = source.length / BLOCK_SIZE;
+        int tableSize = Integer.highestOneBit(blocks * 2 - 1) << 1;
+        int mask = tableSize - 1;
+        int[] table = new int[tableSize];
+        int[] next = new int[blocks];
+        Arrays.fill(table, -1);
+        for (int block = blocks - 1; block >= 0; block--) {
+            int slot = hash(source, block * BLOCK_SIZE) & mask;
+            next[block] = table[slot];
+            table[slot] = block;
+        }
+
+        int power = 1;
+        for (int i = 0; i < BLOCK_SIZE - 1; i++) {
+            power *= HASH_BASE;
+        }
+
+        int literalStart = 0;
+        int position = 0;
+        int hash = hash(target, 0);
+        while (position + BLOCK_SIZE <= target.length) {
+            int bestOffset = -1;
+            int bestLength = 0;
+
+            int candidates = 0;
+            for (int block = table[hash & mask]; block != -1 && candidates < MAX_CANDIDATES; block = next[block], candidates++) {
+                int offset = block * BLOCK_SIZE;
+                int length = matchLength(source, offset, target, position);
+                if (length > bestLength) {
+                    bestOffset = offset;
+                    bestLength = length;
+                }
+            }
+
+            if (bestLength >= BLOCK_SIZE) {
+                // Extend backwards into the pending literal
+                while (position > literalStart && bestOffset > 0 && source[bestOffset - 1] == target[position - 1]) {
+                    bestOffset--;
+                    position--;
+                    bestLength++;
+                }
+
+                writeAdd(target, literalStart, position - literalStart, outputStream);
+                outputStream.writeByte(OP_COPY);
+                outputStream.writeLong(bestOffset);
+                outputStream.writeInt(bestLength);
+
+                position += bestLength;
+                literalStart = position;
+                if (position + BLOCK_SIZE <= target.length) {
+                    hash = hash(target, position);
+                }
+                continue;
+            }
+
+            if (position + BLOCK_SIZE < target.length) {
+                // Roll the hash one byte forward
+                hash = (hash - target[position] * power) * HASH_BASE + target[position + BLOCK_SIZE];
+            }
+            position++;
+        }
+
+        writeAdd(target, literalStart, target.length - literalStart, outputStream);
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * HASH_BASE + bytes[i];
+        }
+        return hash;
+    }
+
+    private static int matchLength(byte[] source, int sourceOffset, byte[] target, int targetOffset) {
+        int max = Math.min(source.length - sourceOffset, target.length - targetOffset);
+        int mismatch = Arrays.mismatch(
+                source, sourceOffset, sourceOffset + max,
+                target, targetOffset, targetOffset + max
+        );
+        return mismatch == -1 ? max : mismatch;
+    }
+
+    private static void writeAdd(byte[] bytes, int offset, int length, DataOutputStream outputStream) throws IOException {
+        if (length == 0) {
+            return;
+        }
+
+        outputStream.writeByte(OP_ADD);
+        outputStream.writeInt(length);
+        outputStream.write(bytes, offset, length);
+    }
+}
@@ -0,0 +1,125 @@
+package dev.vankka.dsrvdownloader.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * AIMD concurrency limit on a server-side signal: how long transfers take to get started,
+ * which goes up as they queue for container threads and for the disk.
+ * Grows by one for each transfer that started in time while the limit is being used,
+ * shrinks by 10% for each one that took longer than the maximum latency.
+ * How fast the client takes the data (or if it disconnects) doesn't affect the limit.
+ */
+public class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double SMOOTHING = 0.1;
+
+    private final int minimum;
+    private final int maximum;
+    private final long maximumLatency;
+
+    private double limit;
+    private int inFlight;
+    private long rejected;
+    private double averageLatency;
+    private long lastRelease;
+    private double averageReleaseInterval;
+    // Rejected since the last release, they're waiting for a permit
+    private long waiting;
+
+    /**
+     * @param maximumLatency the maximum time a transfer may take to get started
+     */
+    public ConcurrencyLimiter(int initial, int minimum, int maximum, long maximumLatency, TimeUnit unit) {
+        this.limit = initial;
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.maximumLatency = unit.toNanos(maximumLatency);
+    }
+
+    /**
+     * @return a permit that must be released once the transfer ends, or {@code null} if the limit has been reached
+     */
+    @Nullable
+    public synchronized Permit tryAcquire() {
+        if (inFlight >= (int) limit) {
+            rejected++;
+            waiting++;
+            return null;
+        }
+
+        inFlight++;
+        return new Permit();
+    }
+
+    private synchronized void release(long latency) {
+        inFlight--;
+
+        long now = System.nanoTime();
+        if (lastRelease != 0) {
+            long interval = now - lastRelease;
+            averageReleaseInterval = averageReleaseInterval == 0
+                                     ? interval
+                                     : averageReleaseInterval + (interval - averageReleaseInterval) * SMOOTHING;
+        }
+        lastRelease = now;
+        waiting = Math.max(0, waiting - 1);
+
+        if (latency < 0) {
+            // Nothing was measured, nothing to go by
+            return;
+        }
+
+        averageLatency = averageLatency == 0 ? latency : averageLatency + (latency - averageLatency) * SMOOTHING;
+        if (latency > maximumLatency) {
+            limit = Math.max(minimum, limit * BACKOFF_RATIO);
+        } else if (inFlight * 2 >= limit) {
+            // Only grow if the current limit is actually being used
+            limit = Math.min(maximum, limit + 1);
+        }
+    }
+
+    /**
+     * An estimate of how long it'll take until a permit becomes available for a client that is rejected now,
+     * from how often permits are released and how many rejected clients are ahead of it.
+     */
+    public synchronized long retryAfterSeconds() {
+        double seconds = averageReleaseInterval * (waiting + 1) / TimeUnit.SECONDS.toNanos(1);
+        return Math.max(1, Math.min(60, (long) Math.ceil(seconds)));
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized long rejected() {
+        return rejected;
+    }
+
+    public synchronized long averageLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis((long) averageLatency);
+    }
+
+    public class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit() {}
+
+        /**
+         * @param latency how long the transfer took to get started (nanoseconds), {@code -1} if that wasn't measured
+         */
+        public void release(long latency) {
+            if (released.compareAndSet(false, true)) {
+                ConcurrencyLimiter.this.release(latency);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package dev.vankka.dsrvdownloader.util;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checkpoints of counters kept in a memory-mapped file, so they survive the process crashing or being killed.
+ * There are two areas for checkpoints: a checkpoint is written over the older one and then made current
+ * with a single write in the header, a checkpoint that was being written during a crash is never read.
+ * <p>
+ * Each checkpoint is tagged with a sequence number chosen by the caller,
+ * so it can tell if the counts were already stored elsewhere since.
+ */
+public class CounterJournal {
+
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 512;
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int counts;
+    private final int keyOffset;
+    private final int areaSize;
+    private long generation;
+
+    /**
+     * @param slots the maximum amount of counters in a checkpoint
+     * @param counts the amount of counts per counter
+     */
+    public CounterJournal(Path file, int slots, int counts) throws IOException {
+        this.slots = slots;
+        this.counts = counts;
+        // Key length (padded for alignment), counts, key
+        this.keyOffset = Long.BYTES + counts * Long.BYTES;
+        if (keyOffset >= SLOT_SIZE) {
+            throw new IllegalArgumentException("Too many counts");
+        }
+        // Sequence and amount of counters (padded), then the slots
+        this.areaSize = HEADER_SIZE + slots * SLOT_SIZE;
+
+        try (FileChannel channel = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * areaSize);
+        }
+        this.generation = (long) LONG.getAcquire(buffer, 0);
+    }
+
+    private int area(long generation) {
+        return HEADER_SIZE + (int) (generation & 1) * areaSize;
+    }
+
+    private int slot(int area, int slot) {
+        return area + HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * The sequence number of the current checkpoint, {@code 0} if there is none.
+     */
+    public synchronized long sequence() {
+        return generation == 0 ? 0 : buffer.getLong(area(generation));
+    }
+
+    /**
+     * The counters in the current checkpoint, which may have been written by a previous process.
+     */
+    public synchronized List<Entry> entries() throws IOException {
+        if (generation == 0) {
+            return new ArrayList<>();
+        }
+
+        int area = area(generation);
+        int amount = buffer.getInt(area + Long.BYTES);
+        List<Entry> entries = new ArrayList<>(amount);
+        for (int slot = 0; slot < amount; slot++) {
+            int offset = slot(area, slot);
+            byte[] keyBytes = new byte[buffer.getInt(offset)];
+            buffer.get(offset + keyOffset, keyBytes);
+
+            List<String> key = new ArrayList<>();
+            try (DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(keyBytes))) {
+                int size = inputStream.readUnsignedByte();
+                for (int i = 0; i < size; i++) {
+                    key.add(inputStream.readUTF());
+                }
+            }
+
+            long[] values = new long[counts];
+            for (int i = 0; i < counts; i++) {
+                values[i] = buffer.getLong(offset + Long.BYTES + i * Long.BYTES);
+            }
+            entries.add(new Entry(key, values));
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the current checkpoint, and writes it to the storage device.
+     * Counters that don't fit (there are too many or the key is too long) are left out.
+     *
+     * @return the amount of counters that were left out
+     */
+    public synchronized int checkpoint(long sequence, List<Entry> entries) {
+        long nextGeneration = generation + 1;
+        int area = area(nextGeneration);
+
+        int amount = 0;
+        for (Entry entry : entries) {
+            byte[] keyBytes = keyBytes(entry.key());
+            if (amount >= slots || keyBytes == null || keyOffset + keyBytes.length > SLOT_SIZE) {
+                continue;
+            }
+
+            int offset = slot(area, amount++);
+            buffer.putInt(offset, keyBytes.length);
+            for (int i = 0; i < counts; i++) {
+                buffer.putLong(offset + Long.BYTES + i * Long.BYTES, entry.counts()[i]);
+            }
+            buffer.put(offset + keyOffset, keyBytes);
+        }
+        buffer.putLong(area, sequence);
+        buffer.putInt(area + Long.BYTES, amount);
+
+        // The checkpoint has to be on the device before the header points to it
+        buffer.force();
+        LONG.setRelease(buffer, 0, nextGeneration);
+        buffer.force(0, HEADER_SIZE);
+        generation = nextGeneration;
+
+        return entries.size() - amount;
+    }
+
+    private static byte[] keyBytes(List<String> key) {
+        if (key.size() > 255) {
+            return null;
+        }
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream outputStream = new DataOutputStream(byteStream)) {
+            outputStream.writeByte(key.size());
+            for (String part : key) {
+                outputStream.writeUTF(part);
+            }
+        } catch (IOException e) {
+            // Key part over 64KiB
+            return null;
+        }
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * @param key identifies the counter
+     * @param counts the counts at the time of the checkpoint
+     */
+    public record Entry(List<String> key, long[] counts) {}
+}
@@ -19,6 +19,42 @@ public final class HttpContentUtil {
         return status + (httpStatus != null ? " " + httpStatus.getReasonPhrase() : "");
     }
 
+    /**
+     * If the {@code Accept-Encoding} header (RFC 7231) allows the given content coding:
+     * it's listed, or {@code *} is, with a non-zero quality. Codings are compared as whole tokens.
+     */
+    public static boolean acceptsEncoding(@Nullable String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        boolean wildcard = false;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parameters = entry.split(";");
+            String token = parameters[0].trim();
+
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.regionMatches(true, 0, "q=", 0, 2)) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException ignored) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (token.equalsIgnoreCase(coding)) {
+                // Listed explicitly, the wildcard doesn't matter
+                return quality > 0;
+            } else if (token.equals("*")) {
+                wildcard = quality > 0;
+            }
+        }
+        return wildcard;
+    }
+
     public static String prettify(Response response, @Nullable ResponseBody body) throws IOException {
         int status = response.code();
         if (body == null) {
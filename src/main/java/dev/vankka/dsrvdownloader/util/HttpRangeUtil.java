@@ -0,0 +1,112 @@
+package dev.vankka.dsrvdownloader.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public final class HttpRangeUtil {
+
+    private static final String BYTES_UNIT = "bytes=";
+    private static final int MAX_RANGES = 16;
+
+    private HttpRangeUtil() {}
+
+    /**
+     * Parses a {@code Range} header (RFC 7233) against a representation of the given size.
+     *
+     * Overlapping and adjacent ranges are merged, the ranges are returned in order.
+     *
+     * @return {@code null} if the header should be ignored (and the full content sent),
+     * an empty list if none of the ranges are satisfiable
+     */
+    public static List<Range> parse(String header, long size) {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+
+        String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<>(specs.length);
+        long requested = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+
+            long start, end;
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // Suffix range, the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                    if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start >= size) {
+                // Unsatisfiable
+                continue;
+            }
+            Range range = new Range(start, end);
+            requested += range.length();
+            if (requested > size) {
+                // Asking for more than the whole thing (repeated ranges), just send it once
+                return null;
+            }
+            ranges.add(range);
+        }
+
+        if (ranges.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        ranges.sort(Comparator.comparingLong(Range::start));
+        List<Range> merged = new ArrayList<>(ranges.size());
+        Range current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            Range next = ranges.get(i);
+            if (next.start() <= current.end() + 1) {
+                current = new Range(current.start(), Math.max(current.end(), next.end()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * @param start the first byte (inclusive)
+     * @param end the last byte (inclusive)
+     */
+    public record Range(long start, long end) {
+
+        public long length() {
+            return end - start + 1;
+        }
+
+        public String contentRange(long size) {
+            return "bytes " + start + "-" + end + "/" + size;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package dev.vankka.dsrvdownloader.util;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Estimates how many distinct values were offered in a fixed 2KiB, without keeping the values.
+ * Sketches are merged by taking the maximum of each register, so merging the same sketch again changes nothing.
+ * Offering is thread-safe.
+ */
+public class HyperLogLog {
+
+    private static final int PRECISION = 11;
+    public static final int REGISTERS = 1 << PRECISION;
+    private static final VarHandle REGISTER = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private final byte[] registers;
+    private volatile boolean dirty;
+
+    public HyperLogLog() {
+        this.registers = new byte[REGISTERS];
+    }
+
+    public HyperLogLog(byte[] registers) {
+        if (registers.length != REGISTERS) {
+            throw new IllegalArgumentException("Expected " + REGISTERS + " registers");
+        }
+        this.registers = registers.clone();
+    }
+
+    /**
+     * A 64-bit hash of the value (FNV-1a with the MurmurHash3 finalizer to spread the bits).
+     */
+    public static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public void offer(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        // The position of the first set bit in the rest of the hash, capped so it always fits
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        raise(index, (byte) rank);
+    }
+
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < REGISTERS; i++) {
+            raise(i, (byte) REGISTER.getVolatile(other.registers, i));
+        }
+    }
+
+    private void raise(int index, byte rank) {
+        byte current;
+        do {
+            current = (byte) REGISTER.getVolatile(registers, index);
+            if (current >= rank) {
+                return;
+            }
+        } while (!REGISTER.compareAndSet(registers, index, current, rank));
+        dirty = true;
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            byte register = (byte) REGISTER.getVolatile(registers, i);
+            sum += 1.0D / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha = 0.7213D / (1 + 1.079D / REGISTERS);
+        double estimate = alpha * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5D * REGISTERS && zeros > 0) {
+            // Linear counting is more accurate while many registers are still empty
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[REGISTERS];
+        for (int i = 0; i < REGISTERS; i++) {
+            copy[i] = (byte) REGISTER.getVolatile(registers, i);
+        }
+        return copy;
+    }
+
+    /**
+     * Clears the changed state, must be called before reading the registers to write them out.
+     * @return if any register changed since the last call
+     */
+    public boolean markWritten() {
+        boolean changed = dirty;
+        dirty = false;
+        return changed;
+    }
+
+    public boolean isChanged() {
+        return dirty;
+    }
+
+    /**
+     * Restores the changed state, if writing out the registers failed.
+     */
+    public void markChanged() {
+        dirty = true;
+    }
+}
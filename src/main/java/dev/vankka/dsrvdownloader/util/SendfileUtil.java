@@ -0,0 +1,38 @@
+package dev.vankka.dsrvdownloader.util;
+
+import org.apache.catalina.Globals;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.file.Path;
+
+/**
+ * Hands file transfers off to Tomcat's sendfile support (zero-copy {@code FileChannel#transferTo} on the connector),
+ * which also releases the worker thread while the file is being written to the socket.
+ */
+public final class SendfileUtil {
+
+    private SendfileUtil() {}
+
+    public static boolean isSupported(HttpServletRequest request) {
+        return Boolean.TRUE.equals(request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR));
+    }
+
+    /**
+     * Requests the given byte range of the file to be sent after the request has been handled.
+     * The response headers (including the content length) must be set by the caller and nothing may be written to the body.
+     *
+     * @param start the first byte to send (inclusive)
+     * @param end the last byte to send (exclusive)
+     * @return {@code false} if the connector can't do sendfile, in which case the caller should write the body itself (see {@link AsyncTransfer})
+     */
+    public static boolean sendfile(HttpServletRequest request, Path file, long start, long end) {
+        if (!isSupported(request)) {
+            return false;
+        }
+
+        request.setAttribute(Globals.SENDFILE_FILENAME_ATTR, file.toAbsolutePath().normalize().toString());
+        request.setAttribute(Globals.SENDFILE_FILE_START_ATTR, start);
+        request.setAttribute(Globals.SENDFILE_FILE_END_ATTR, end);
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package dev.vankka.dsrvdownloader.model.stats;
+
+import dev.vankka.dsrvdownloader.model.UserAgent;
+import dev.vankka.dsrvdownloader.util.HyperLogLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ColumnarStatsStoreTest {
+
+    private static final int RETENTION_DAYS = 30;
+    private static final StatsKey RELEASE = new StatsKey("DiscordSRV", "DiscordSRV", "release", "jar", "1.26.0");
+    private static final StatsKey SNAPSHOT = new StatsKey("DiscordSRV", "DiscordSRV", "snapshot", "jar", "0123abcd");
+
+    @TempDir
+    Path directory;
+
+    private ColumnarStatsStore open() throws IOException {
+        return new ColumnarStatsStore(directory.resolve("stats.columnar"), RETENTION_DAYS);
+    }
+
+    private static StatsRow row(StatsKey key, UserAgent userAgent, LocalDate date, long count) {
+        return new StatsRow(key, userAgent, StatsPeriod.DAY, date, count);
+    }
+
+    private static StatsUniques uniques(StatsKey key, LocalDate date, String... sources) {
+        HyperLogLog sketch = new HyperLogLog();
+        for (String source : sources) {
+            sketch.offer(HyperLogLog.hash(source));
+        }
+        return new StatsUniques(key, date, sketch);
+    }
+
+    private static StatsQuery everything(boolean unique) {
+        return new StatsQuery(List.of(), Map.of(), LocalDate.EPOCH, LocalDate.now(), 10, unique);
+    }
+
+    /**
+     * Downloads by key, user agent, period and date.
+     */
+    private static Map<List<Object>, Long> export(StatsStore store) throws IOException {
+        Map<List<Object>, Long> rows = new HashMap<>();
+        store.export(everything(false), row -> rows.merge(
+                List.of(row.key(), row.userAgent(), row.period(), row.date()), row.count(), Long::sum));
+        return rows;
+    }
+
+    private static long unique(StatsStore store) throws IOException {
+        return store.query(everything(true)).get(0).unique();
+    }
+
+    private static void writeSample(StatsStore store) throws IOException {
+        LocalDate today = LocalDate.now();
+        store.write(List.of(
+                row(RELEASE, UserAgent.LIKELY_MANUAL, today.minusDays(1), 3),
+                row(SNAPSHOT, UserAgent.LIKELY_AUTOMATED, today.minusDays(1), 7)
+        ), List.of(uniques(RELEASE, today.minusDays(1), "a", "b", "c")), 1);
+        store.write(List.of(
+                row(RELEASE, UserAgent.LIKELY_MANUAL, today, 2),
+                row(RELEASE, UserAgent.LIKELY_MANUAL, today, 4),
+                row(SNAPSHOT, UserAgent.UNKNOWN, today, 1)
+        ), List.of(uniques(SNAPSHOT, today, "d")), 2);
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        Map<List<Object>, Long> written;
+        long unique;
+        try (ColumnarStatsStore store = open()) {
+            writeSample(store);
+            written = export(store);
+            unique = unique(store);
+        }
+        assertEquals(4, written.size());
+        assertEquals(6, (long) written.get(List.of(RELEASE, UserAgent.LIKELY_MANUAL, StatsPeriod.DAY, LocalDate.now())));
+
+        try (ColumnarStatsStore store = open()) {
+            assertEquals(written, export(store));
+            assertEquals(unique, unique(store));
+            assertEquals(2, store.sequence());
+        }
+    }
+
+    @Test
+    public void logReplay() throws IOException {
+        // Not closed, as if the process ended without writing a snapshot
+        ColumnarStatsStore crashed = open();
+        writeSample(crashed);
+        Map<List<Object>, Long> written = export(crashed);
+        long unique = unique(crashed);
+
+        try (ColumnarStatsStore store = open()) {
+            assertEquals(written, export(store));
+            assertEquals(unique, unique(store));
+            assertEquals(2, store.sequence());
+        }
+    }
+
+    @Test
+    public void logReplayIgnoresTornTail() throws IOException {
+        ColumnarStatsStore crashed = open();
+        writeSample(crashed);
+        Map<List<Object>, Long> written = export(crashed);
+
+        // An entry that was only partly written: its length and some of its content
+        Path logFile = directory.resolve("stats.columnar.0.log");
+        assertTrue(Files.exists(logFile));
+        ByteBuffer torn = ByteBuffer.allocate(Integer.BYTES + 12).putInt(4096).putLong(3).putInt(1).flip();
+        Files.write(logFile, torn.array(), StandardOpenOption.APPEND);
+
+        try (ColumnarStatsStore store = open()) {
+            assertEquals(written, export(store));
+            assertEquals(2, store.sequence());
+
+            // Written after the torn entry was dropped, not lost behind it
+            store.write(List.of(row(RELEASE, UserAgent.LIKELY_MANUAL, LocalDate.now(), 1)), List.of(), 3);
+        }
+
+        try (ColumnarStatsStore store = open()) {
+            assertEquals(7, (long) export(store).get(List.of(RELEASE, UserAgent.LIKELY_MANUAL, StatsPeriod.DAY, LocalDate.now())));
+            assertEquals(3, store.sequence());
+        }
+    }
+
+    @Test
+    public void compactionMergesDaysIntoWeeks() throws IOException {
+        LocalDate today = LocalDate.now();
+        LocalDate week = today.minusDays(RETENTION_DAYS * 3).withDayOfMonth(8);
+
+        Map<List<Object>, Long> compacted;
+        try (ColumnarStatsStore store = open()) {
+            store.write(List.of(
+                    row(RELEASE, UserAgent.LIKELY_MANUAL, week, 1),
+                    row(RELEASE, UserAgent.LIKELY_MANUAL, week.plusDays(1), 2),
+                    row(RELEASE, UserAgent.LIKELY_MANUAL, week.plusDays(6), 3),
+                    row(RELEASE, UserAgent.LIKELY_MANUAL, today, 5)
+            ), List.of(uniques(RELEASE, week, "a"), uniques(RELEASE, week.plusDays(1), "b")), 1);
+            store.compact();
+
+            compacted = export(store);
+            assertEquals(Map.of(
+                    List.of(RELEASE, UserAgent.LIKELY_MANUAL, StatsPeriod.WEEK, week), 6L,
+                    List.of(RELEASE, UserAgent.LIKELY_MANUAL, StatsPeriod.DAY, today), 5L
+            ), compacted);
+            assertEquals(11, store.query(everything(false)).get(0).sum());
+        }
+
+        try (ColumnarStatsStore store = open()) {
+            assertEquals(compacted, export(store));
+            assertEquals(2, unique(store));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package dev.vankka.dsrvdownloader.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinaryDeltaTest {
+
+    @TempDir
+    Path directory;
+
+    private static byte[] random(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            outputStream.writeBytes(part);
+        }
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Creates a delta from source to target and checks that applying it gives the target back.
+     *
+     * @return the delta file
+     */
+    private Path roundTrip(byte[] source, byte[] target) throws IOException {
+        Path sourceFile = Files.write(directory.resolve("source"), source);
+        Path targetFile = Files.write(directory.resolve("target"), target);
+        Path deltaFile = directory.resolve("delta");
+        BinaryDelta.create(sourceFile, targetFile, deltaFile);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinaryDelta.apply(sourceFile, deltaFile, output);
+        assertArrayEquals(target, output.toByteArray());
+        return deltaFile;
+    }
+
+    /**
+     * The ops in a delta file as (op, offset or -1, length).
+     */
+    private static long[][] ops(Path deltaFile) throws IOException {
+        try (DataInputStream inputStream = new DataInputStream(new GZIPInputStream(Files.newInputStream(deltaFile)))) {
+            inputStream.skipNBytes(8 + Long.BYTES);
+            long[][] ops = new long[0][];
+            byte op;
+            while ((op = inputStream.readByte()) != 0) {
+                long offset = -1;
+                int length;
+                if (op == 1) {
+                    offset = inputStream.readLong();
+                    length = inputStream.readInt();
+                } else {
+                    length = inputStream.readInt();
+                    inputStream.skipNBytes(length);
+                }
+                ops = Arrays.copyOf(ops, ops.length + 1);
+                ops[ops.length - 1] = new long[] {op, offset, length};
+            }
+            return ops;
+        }
+    }
+
+    private Path writeDelta(long targetSize, byte[] literal) throws IOException {
+        Path deltaFile = directory.resolve("handmade");
+        try (DataOutputStream outputStream = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(deltaFile)))) {
+            outputStream.write("DSRVDLT1".getBytes(StandardCharsets.US_ASCII));
+            outputStream.writeLong(targetSize);
+            outputStream.writeByte(2);
+            outputStream.writeInt(literal.length);
+            outputStream.write(literal);
+            outputStream.writeByte(0);
+        }
+        return deltaFile;
+    }
+
+    @Test
+    public void editedFileRoundTrip() throws IOException {
+        byte[] source = random(1, 64 * 1024);
+        byte[] target = concat(
+                Arrays.copyOfRange(source, 0, 10000),
+                random(2, 100),
+                Arrays.copyOfRange(source, 12000, 40000),
+                Arrays.copyOfRange(source, 50000, source.length)
+        );
+
+        Path deltaFile = roundTrip(source, target);
+        assertTrue(Files.size(deltaFile) < 1024);
+    }
+
+    @Test
+    public void backwardExtensionIntoPendingLiteral() throws IOException {
+        byte[] source = random(3, 4096);
+        // The copied part doesn't start on a block boundary of the source
+        byte[] target = concat(random(4, 3), Arrays.copyOfRange(source, 10, source.length));
+
+        Path deltaFile = roundTrip(source, target);
+        long[][] ops = ops(deltaFile);
+        assertEquals(2, ops.length);
+        // Only the new bytes are literal, the copy reaches back to the source's byte 10
+        assertArrayEquals(new long[] {2, -1, 3}, ops[0]);
+        assertArrayEquals(new long[] {1, 10, source.length - 10}, ops[1]);
+    }
+
+    @Test
+    public void inputsShorterThanBlockSize() throws IOException {
+        byte[] source = random(5, 4096);
+        roundTrip(source, Arrays.copyOfRange(source, 0, 31));
+        roundTrip(source, new byte[0]);
+        roundTrip(Arrays.copyOfRange(source, 0, 31), source);
+        roundTrip(new byte[0], source);
+        roundTrip(new byte[0], new byte[0]);
+
+        long[][] ops = ops(roundTrip(Arrays.copyOfRange(source, 0, 20), Arrays.copyOfRange(source, 0, 10)));
+        assertEquals(1, ops.length);
+        assertArrayEquals(new long[] {2, -1, 10}, ops[0]);
+    }
+
+    @Test
+    public void rejectsDeltaNotMatchingTargetSize() throws IOException {
+        Path sourceFile = Files.write(directory.resolve("source"), random(6, 64));
+
+        Path tooShort = writeDelta(20, new byte[10]);
+        assertThrows(IOException.class, () -> BinaryDelta.apply(sourceFile, tooShort, new ByteArrayOutputStream()));
+
+        Path tooLong = writeDelta(5, new byte[10]);
+        assertThrows(IOException.class, () -> BinaryDelta.apply(sourceFile, tooLong, new ByteArrayOutputStream()));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BinaryDelta.apply(sourceFile, writeDelta(10, new byte[10]), output);
+        assertEquals(10, output.size());
+    }
+
+    @Test
+    public void candidateChainIsCapped() {
+        // Every block of the source has the same hash, and the target matches each of them for one block only.
+        // Without a cap every match would compare against all 131072 blocks
+        byte[] source = new byte[4 * 1024 * 1024];
+        byte[] target = new byte[1024 * 1024];
+        for (int i = 32; i < target.length; i += 33) {
+            target[i] = 1;
+        }
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            roundTrip(source, target);
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package dev.vankka.dsrvdownloader.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long FAST = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static ConcurrencyLimiter limiter() {
+        return new ConcurrencyLimiter(20, 4, 40, 10, TimeUnit.MILLISECONDS);
+    }
+
+    private static List<ConcurrencyLimiter.Permit> acquire(ConcurrencyLimiter limiter, int amount) {
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            ConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+            assertNotNull(permit);
+            permits.add(permit);
+        }
+        return permits;
+    }
+
+    @Test
+    public void rejectsAtTheLimit() {
+        ConcurrencyLimiter limiter = limiter();
+        List<ConcurrencyLimiter.Permit> permits = acquire(limiter, 20);
+        assertNull(limiter.tryAcquire());
+        assertEquals(1, limiter.rejected());
+
+        permits.get(0).release(-1);
+        assertNotNull(limiter.tryAcquire());
+        assertEquals(20, limiter.inFlight());
+    }
+
+    @Test
+    public void shrinksWhenTransfersStartSlowly() {
+        ConcurrencyLimiter limiter = limiter();
+        List<ConcurrencyLimiter.Permit> permits = acquire(limiter, 20);
+
+        permits.get(0).release(SLOW);
+        assertEquals(18, limiter.limit());
+        permits.get(1).release(SLOW);
+        assertEquals(16, limiter.limit());
+
+        // The transfers still running are now over the limit
+        assertEquals(18, limiter.inFlight());
+        assertNull(limiter.tryAcquire());
+
+        for (ConcurrencyLimiter.Permit permit : permits.subList(2, permits.size())) {
+            permit.release(SLOW);
+        }
+        assertEquals(4, limiter.limit());
+    }
+
+    @Test
+    public void growsWhenUsedAndFast() {
+        ConcurrencyLimiter limiter = limiter();
+        List<ConcurrencyLimiter.Permit> permits = acquire(limiter, 20);
+
+        permits.get(0).release(FAST);
+        assertEquals(21, limiter.limit());
+
+        // Releasing twice doesn't count twice
+        permits.get(0).release(FAST);
+        assertEquals(21, limiter.limit());
+        assertEquals(19, limiter.inFlight());
+    }
+
+    @Test
+    public void doesNotGrowWhenIdle() {
+        ConcurrencyLimiter limiter = limiter();
+        List<ConcurrencyLimiter.Permit> permits = acquire(limiter, 2);
+
+        permits.get(0).release(FAST);
+        permits.get(1).release(FAST);
+        assertEquals(20, limiter.limit());
+        assertTrue(limiter.retryAfterSeconds() >= 1);
+    }
+
+    @Test
+    public void ignoresUnmeasuredTransfers() {
+        ConcurrencyLimiter limiter = limiter();
+        List<ConcurrencyLimiter.Permit> permits = acquire(limiter, 20);
+
+        for (ConcurrencyLimiter.Permit permit : permits) {
+            permit.release(-1);
+        }
+        assertEquals(20, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+}
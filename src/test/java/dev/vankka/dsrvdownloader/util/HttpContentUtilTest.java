@@ -0,0 +1,40 @@
+package dev.vankka.dsrvdownloader.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HttpContentUtilTest {
+
+    @Test
+    public void acceptsListedEncoding() {
+        assertTrue(HttpContentUtil.acceptsEncoding("gzip", "gzip"));
+        assertTrue(HttpContentUtil.acceptsEncoding("deflate, GZIP;q=0.5, br", "gzip"));
+        assertTrue(HttpContentUtil.acceptsEncoding("gzip ; q=1.0", "gzip"));
+    }
+
+    @Test
+    public void matchesWholeTokens() {
+        assertFalse(HttpContentUtil.acceptsEncoding("x-gzip", "gzip"));
+        assertFalse(HttpContentUtil.acceptsEncoding("gzipped, br", "gzip"));
+        assertFalse(HttpContentUtil.acceptsEncoding("", "gzip"));
+        assertFalse(HttpContentUtil.acceptsEncoding(null, "gzip"));
+    }
+
+    @Test
+    public void honoursZeroQuality() {
+        assertFalse(HttpContentUtil.acceptsEncoding("gzip;q=0", "gzip"));
+        assertFalse(HttpContentUtil.acceptsEncoding("br, gzip;q=0.000", "gzip"));
+        assertFalse(HttpContentUtil.acceptsEncoding("gzip;q=invalid", "gzip"));
+    }
+
+    @Test
+    public void wildcard() {
+        assertTrue(HttpContentUtil.acceptsEncoding("br, *", "gzip"));
+        assertFalse(HttpContentUtil.acceptsEncoding("*;q=0", "gzip"));
+        // Listing the coding overrides the wildcard
+        assertFalse(HttpContentUtil.acceptsEncoding("*, gzip;q=0", "gzip"));
+        assertTrue(HttpContentUtil.acceptsEncoding("*;q=0, gzip", "gzip"));
+    }
+}
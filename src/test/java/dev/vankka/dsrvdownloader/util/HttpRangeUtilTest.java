@@ -0,0 +1,88 @@
+package dev.vankka.dsrvdownloader.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HttpRangeUtilTest {
+
+    private static final long SIZE = 1000;
+
+    private static HttpRangeUtil.Range range(long start, long end) {
+        return new HttpRangeUtil.Range(start, end);
+    }
+
+    @Test
+    public void parsesRanges() {
+        assertEquals(List.of(range(0, 99)), HttpRangeUtil.parse("bytes=0-99", SIZE));
+        assertEquals(List.of(range(500, 999)), HttpRangeUtil.parse("bytes=500-", SIZE));
+        assertEquals(List.of(range(0, 9), range(20, 29)), HttpRangeUtil.parse("BYTES= 20-29 , 0-9", SIZE));
+
+        // Past the end is cut off at the end
+        assertEquals(List.of(range(900, 999)), HttpRangeUtil.parse("bytes=900-5000", SIZE));
+    }
+
+    @Test
+    public void parsesSuffixRanges() {
+        assertEquals(List.of(range(900, 999)), HttpRangeUtil.parse("bytes=-100", SIZE));
+        // Longer than the content is all of it
+        assertEquals(List.of(range(0, 999)), HttpRangeUtil.parse("bytes=-5000", SIZE));
+        // Nothing to send
+        assertEquals(List.of(), HttpRangeUtil.parse("bytes=-0", SIZE));
+    }
+
+    @Test
+    public void mergesOverlappingAndAdjacentRanges() {
+        assertEquals(List.of(range(0, 149)), HttpRangeUtil.parse("bytes=50-149,0-99", SIZE));
+        assertEquals(List.of(range(0, 199)), HttpRangeUtil.parse("bytes=0-99,100-199", SIZE));
+        assertEquals(List.of(range(0, 99), range(200, 299)), HttpRangeUtil.parse("bytes=200-299,10-20,0-99", SIZE));
+    }
+
+    @Test
+    public void ignoresTooManyRanges() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 16; i++) {
+            header.append(',').append(i * 10).append('-').append(i * 10);
+        }
+        assertEquals(16, HttpRangeUtil.parse(header.toString(), SIZE).size());
+
+        header.append(",500-500");
+        assertNull(HttpRangeUtil.parse(header.toString(), SIZE));
+    }
+
+    @Test
+    public void ignoresRequestsForMoreThanTheWholeContent() {
+        assertNull(HttpRangeUtil.parse("bytes=0-999,0-999", SIZE));
+        assertNull(HttpRangeUtil.parse("bytes=-600,0-500", SIZE));
+        assertEquals(List.of(range(0, 999)), HttpRangeUtil.parse("bytes=0-499,500-999", SIZE));
+    }
+
+    @Test
+    public void ignoresInvalidRanges() {
+        assertNull(HttpRangeUtil.parse("bytes=100-50", SIZE));
+        assertNull(HttpRangeUtil.parse("bytes=0-99,100-50", SIZE));
+        assertNull(HttpRangeUtil.parse("bytes=abc-", SIZE));
+        assertNull(HttpRangeUtil.parse("bytes=100", SIZE));
+        assertNull(HttpRangeUtil.parse("items=0-99", SIZE));
+        assertNull(HttpRangeUtil.parse(null, SIZE));
+    }
+
+    @Test
+    public void unsatisfiableStart() {
+        assertTrue(HttpRangeUtil.parse("bytes=1000-", SIZE).isEmpty());
+        assertTrue(HttpRangeUtil.parse("bytes=2000-3000", SIZE).isEmpty());
+        // Only the satisfiable ones are kept
+        assertEquals(List.of(range(0, 9)), HttpRangeUtil.parse("bytes=2000-3000,0-9", SIZE));
+    }
+
+    @Test
+    public void contentRange() {
+        HttpRangeUtil.Range range = range(100, 199);
+        assertEquals(100, range.length());
+        assertEquals("bytes 100-199/1000", range.contentRange(SIZE));
+    }
+}